@@ -0,0 +1,156 @@
+package offgrid.geogram.bluetooth;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import offgrid.geogram.bluetooth.other.comms.BlueCommands;
+import offgrid.geogram.bluetooth.other.comms.BlueFrame;
+import offgrid.geogram.core.Central;
+import offgrid.geogram.core.Log;
+
+/**
+ * Holds the acknowledgements of packages received for a short moment
+ * instead of writing one for each package.
+ * <p>
+ * When a single frame leaves for the same device within that moment
+ * the acknowledgements go inside it (see {@link BlueFrame#addAcks}).
+ * Otherwise they are written together on one command that confirms
+ * all of them, e.g. {@code >ACK:2A1A78:3F4B:287} for the packages 3F
+ * and 4B. The last field is how long the first package was held here,
+ * so that the other device can take it out of its round trip time.
+ */
+public class BlueAckBatcher {
+
+    private static final String TAG = "BlueAckBatcher";
+
+    public static final long
+            timeToDelayAck = 300;   // waiting longer makes the sender think the package was lost
+
+    private static BlueAckBatcher instance = null;
+    private final Context context;
+
+    // package ids waiting to be acknowledged, <MAC address, batch>
+    private final HashMap<String, Batch> pending = new HashMap<>();
+
+    /**
+     * The ids waiting for one device and the timer that writes them.
+     */
+    private static class Batch {
+        // <package id, time it was added>
+        private final LinkedHashMap<String, Long> ids = new LinkedHashMap<>();
+        private BlueTimerWheel.Timeout timer;
+    }
+
+    private BlueAckBatcher(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    public static synchronized BlueAckBatcher getInstance(Context context) {
+        if (instance == null) {
+            instance = new BlueAckBatcher(context);
+        }
+        return instance;
+    }
+
+    /**
+     * A package from this device was received, acknowledge it soon.
+     */
+    public void add(String macAddress, String packageId) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Batch batch = pending.get(macAddress);
+            if (batch != null) {
+                batch.ids.putIfAbsent(packageId, now);
+                return;
+            }
+            Batch created = new Batch();
+            created.ids.put(packageId, now);
+            created.timer = BlueTimerWheel.getInstance().schedule(
+                    () -> flush(macAddress, created), now + timeToDelayAck);
+            pending.put(macAddress, created);
+        }
+    }
+
+    /**
+     * Takes the acknowledgements waiting for a device so they can
+     * travel inside a frame that is leaving for it.
+     *
+     * @param max the most ids that fit in the frame
+     * @return the ids, empty when there are none
+     */
+    public synchronized List<String> take(String macAddress, int max) {
+        ArrayList<String> result = new ArrayList<>();
+        Batch batch = pending.get(macAddress);
+        if (batch == null) {
+            return result;
+        }
+        Iterator<String> iterator = batch.ids.keySet().iterator();
+        while (iterator.hasNext() && result.size() < max) {
+            result.add(iterator.next());
+            iterator.remove();
+        }
+        if (batch.ids.isEmpty()) {
+            // nothing left to write, the next id starts its own moment
+            pending.remove(macAddress);
+            batch.timer.cancel();
+        }
+        return result;
+    }
+
+    /**
+     * The frame that carried these acknowledgements failed to leave,
+     * they wait again for the next frame or the command.
+     */
+    public void putBack(String macAddress, List<String> packageIds) {
+        for (String packageId : packageIds) {
+            add(macAddress, packageId);
+        }
+    }
+
+    /**
+     * The moment is over, write what didn't leave inside another frame.
+     */
+    private void flush(String macAddress, Batch batch) {
+        synchronized (this) {
+            // the batch was emptied by take() and maybe replaced since
+            if (pending.get(macAddress) != batch) {
+                return;
+            }
+            pending.remove(macAddress);
+        }
+        if (batch.ids.isEmpty()) {
+            return;
+        }
+        String prefix = BlueCommands.oneLineAcknowledgement
+                + Central.getInstance().getSettings().getIdDevice() + ":";
+        Bluecomm bluecomm = Bluecomm.getInstance(context);
+        long now = System.currentTimeMillis();
+        // room for ":" and the time held, one more digit when the timer runs late
+        int suffix = 1 + String.valueOf(timeToDelayAck).length() + 1;
+        // as many ids as fit in one write, two characters for each
+        int max = Math.max(1, (bluecomm.getMaxFrameSize(macAddress) - prefix.length() - suffix) / 2);
+        StringBuilder text = new StringBuilder(prefix);
+        long timeFirstAdded = 0;
+        int count = 0;
+        for (Map.Entry<String, Long> entry : batch.ids.entrySet()) {
+            if (count == max) {
+                bluecomm.writeData(macAddress, text.append(':').append(now - timeFirstAdded).toString());
+                text.setLength(prefix.length());
+                count = 0;
+            }
+            if (count == 0) {
+                timeFirstAdded = entry.getValue();
+            }
+            text.append(entry.getKey());
+            count++;
+        }
+        bluecomm.writeData(macAddress, text.append(':').append(now - timeFirstAdded).toString());
+        Log.i(TAG, "Acknowledged " + batch.ids.size() + " package(s) to " + macAddress);
+    }
+}
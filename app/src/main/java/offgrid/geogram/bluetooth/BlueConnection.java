@@ -0,0 +1,419 @@
+package offgrid.geogram.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.os.Build;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import offgrid.geogram.bluetooth.other.comms.DataCallbackTemplate;
+import offgrid.geogram.core.Log;
+
+/**
+ * A GATT connection to another device that is kept open
+ * by the BlueConnectionPool. Every step on the link (connect,
+ * MTU, discovery, writes and reads) goes through a queue of
+ * operations, each one starting when the callback of the
+ * previous one arrives instead of waiting a fixed delay.
+ */
+public class BlueConnection {
+
+    private static final String TAG = "BlueConnection";
+
+    private static final UUID SERVICE_UUID = BluetoothCentral.UUID_SERVICE_WALKIETALKIE;
+    private static final UUID CHARACTERISTIC_UUID = BluetoothCentral.UUID_CHARACTERISTIC_GENERAL;
+
+    public enum State {
+        CONNECTING, // waiting for the link, MTU and services
+        READY,      // characteristic found, writes can be made
+        CLOSED      // link is gone, this object can't be used again
+    }
+
+    private final Context context;
+    private final String macAddress;
+    private final BlueConnectionPool pool;
+    private final GattOperationQueue operations;
+    private BluetoothGatt gatt = null;
+    private BluetoothGattCharacteristic characteristic = null;
+    private State state = State.CONNECTING;
+    private long timeLastUsed;
+    // the adapter is reserved from connectGatt() until its callback
+    private boolean holdsAdapter = false;
+
+    BlueConnection(Context context, String macAddress, BlueConnectionPool pool) {
+        this.context = context.getApplicationContext();
+        this.macAddress = macAddress;
+        this.pool = pool;
+        this.operations = new GattOperationQueue(macAddress);
+        this.timeLastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Places the steps to open the link on the queue: connect,
+     * negotiate the MTU (once per device) and discover the services.
+     * Writes and reads placed afterwards wait for these to finish.
+     */
+    void open(BluetoothDevice device) {
+        operations.enqueue(new GattOperation(GattOperation.Type.CONNECT, () -> connect(device)))
+                .whenComplete((value, error) -> {
+                    if (error != null) {
+                        close("Unable to connect: " + error.getMessage());
+                    }
+                });
+
+        if (!Bluecomm.getInstance(context).hasMtu(macAddress)) {
+            operations.enqueue(new GattOperation(GattOperation.Type.REQUEST_MTU, this::requestMtu))
+                    .whenComplete((value, error) -> {
+                        if (error != null) {
+                            Log.i(TAG, "MTU negotiation failed with " + macAddress + ": " + error.getMessage());
+                            Bluecomm.getInstance(context).setMtu(macAddress, Bluecomm.mtuDefault);
+                        }
+                    });
+        }
+
+        operations.enqueue(new GattOperation(GattOperation.Type.DISCOVER_SERVICES, this::discoverServices))
+                .whenComplete((value, error) -> {
+                    if (error != null) {
+                        close("Failed to discover services: " + error.getMessage());
+                        return;
+                    }
+                    findCharacteristic();
+                });
+    }
+
+    /**
+     * Places data on the queue of this connection. The data is written
+     * as soon as the link is ready and the previous operations are finished.
+     */
+    public void write(byte[] data, DataCallbackTemplate callback) {
+        touch();
+        operations.enqueue(new GattOperation(GattOperation.Type.WRITE, () -> writeCharacteristic(data)))
+                .whenComplete((value, error) -> {
+                    touch();
+                    if (error == null) {
+                        callback.onDataSuccess("Write operation completed.");
+                    } else {
+                        callback.onDataError(error.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Reads the value of the characteristic from the other device.
+     */
+    public void read(DataCallbackTemplate callback) {
+        touch();
+        operations.enqueue(new GattOperation(GattOperation.Type.READ, this::readCharacteristic))
+                .whenComplete((value, error) -> {
+                    touch();
+                    if (error != null) {
+                        callback.onDataError(error.getMessage());
+                        return;
+                    }
+                    // ISO-8859-1 keeps a one-to-one mapping with the bytes of binary frames
+                    String data = new String(value == null ? new byte[0] : value, StandardCharsets.ISO_8859_1);
+                    Log.i(TAG, "Characteristic read successfully: " + data);
+                    callback.onDataSuccess(data);
+                });
+    }
+
+    /**
+     * Closes the link and fails whatever was still waiting on the queue.
+     */
+    void close(String reason) {
+        BluetoothGatt gattToClose;
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            state = State.CLOSED;
+            gattToClose = gatt;
+            gatt = null;
+        }
+        // outside the lock, the pool also locks itself when removing us
+        releaseAdapter();
+        operations.close(reason);
+        Bluecomm.getInstance(context).closeGatt(gattToClose);
+        pool.remove(this);
+    }
+
+    /**
+     * Runs inside the queue of operations, so it never waits for the
+     * adapter: when a scan is starting the connect is tried again a
+     * moment later, within the timeout of the operation. Failing it
+     * would fail the writes waiting and count them as losses.
+     */
+    private boolean connect(BluetoothDevice device) {
+        if (BlueLocks.getInstance().lockAdapterForConnection(0) == false) {
+            Log.i(TAG, "Adapter busy with a scan, connecting later to " + macAddress);
+            BlueTimerWheel.getInstance().schedule(() -> connectAgain(device),
+                    System.currentTimeMillis() + BlueLocks.timeToWaitForScan);
+            return true;
+        }
+        synchronized (this) {
+            holdsAdapter = true;
+        }
+        try {
+            BluetoothGatt result = device.connectGatt(context, false, gattCallback, BluetoothDevice.TRANSPORT_LE);
+            boolean closed;
+            synchronized (this) {
+                closed = state == State.CLOSED;
+                if (closed == false) {
+                    gatt = result;
+                }
+            }
+            if (closed) {
+                // closed while a later connect was waiting for the adapter
+                Bluecomm.getInstance(context).closeGatt(result);
+                releaseAdapter();
+                return false;
+            }
+            if (result == null) {
+                releaseAdapter();
+                return false;
+            }
+            return true;
+        } catch (SecurityException e) {
+            Log.e(TAG, "SecurityException while connecting to " + macAddress + ": " + e.getMessage());
+            releaseAdapter();
+            return false;
+        }
+    }
+
+    /**
+     * The adapter was busy when the connect started, the operation
+     * is still running on the queue.
+     */
+    private void connectAgain(BluetoothDevice device) {
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return;
+            }
+        }
+        if (connect(device) == false) {
+            operations.fail(GattOperation.Type.CONNECT, "Unable to connect to " + macAddress);
+        }
+    }
+
+    /**
+     * The connection attempt is over, scans can start again.
+     */
+    private void releaseAdapter() {
+        synchronized (this) {
+            if (holdsAdapter == false) {
+                return;
+            }
+            holdsAdapter = false;
+        }
+        BlueLocks.getInstance().unlockAdapterForConnection();
+    }
+
+    /**
+     * Asks the other device for a larger MTU, onMtuChanged will follow.
+     */
+    private boolean requestMtu() {
+        BluetoothGatt gatt = getGatt();
+        if (gatt == null) {
+            return false;
+        }
+        try {
+            return gatt.requestMtu(Bluecomm.mtuRequested);
+        } catch (SecurityException e) {
+            Log.e(TAG, "SecurityException while requesting MTU: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean discoverServices() {
+        BluetoothGatt gatt = getGatt();
+        if (gatt == null) {
+            return false;
+        }
+        try {
+            return gatt.discoverServices();
+        } catch (SecurityException e) {
+            Log.e(TAG, "SecurityException during service discovery: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean writeCharacteristic(byte[] data) {
+        BluetoothGatt gatt;
+        BluetoothGattCharacteristic characteristic;
+        synchronized (this) {
+            gatt = this.gatt;
+            characteristic = this.characteristic;
+        }
+        if (gatt == null || characteristic == null) {
+            return false;
+        }
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                int result = gatt.writeCharacteristic(characteristic, data,
+                        BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                if (result != BluetoothGatt.GATT_SUCCESS) {
+                    Log.e(TAG, "GATT write failed with status: " + result);
+                    return false;
+                }
+                return true;
+            }
+            characteristic.setValue(data);
+            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            return gatt.writeCharacteristic(characteristic);
+        } catch (SecurityException e) {
+            Log.e(TAG, "SecurityException during write operation: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean readCharacteristic() {
+        BluetoothGatt gatt;
+        BluetoothGattCharacteristic characteristic;
+        synchronized (this) {
+            gatt = this.gatt;
+            characteristic = this.characteristic;
+        }
+        if (gatt == null || characteristic == null) {
+            return false;
+        }
+        try {
+            return gatt.readCharacteristic(characteristic);
+        } catch (SecurityException e) {
+            Log.e(TAG, "SecurityException during read operation: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Looks for our characteristic after the services were discovered.
+     */
+    private void findCharacteristic() {
+        BluetoothGatt gatt = getGatt();
+        if (gatt == null) {
+            return;
+        }
+        BluetoothGattService service = gatt.getService(SERVICE_UUID);
+        if (service == null) {
+            Log.i(TAG, "Service not found: " + SERVICE_UUID);
+            close("Service not found.");
+            return;
+        }
+
+        BluetoothGattCharacteristic characteristic = service.getCharacteristic(CHARACTERISTIC_UUID);
+        if (characteristic == null) {
+            Log.i(TAG, "Characteristic not found: " + CHARACTERISTIC_UUID);
+            close("Characteristic not found.");
+            return;
+        }
+
+        // Check if the characteristic supports write
+        int properties = characteristic.getProperties();
+        if ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE) == 0 &&
+                (properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == 0) {
+            Log.e(TAG, "Characteristic does not support write operations.");
+            close("Characteristic does not support write operations.");
+            return;
+        }
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            this.characteristic = characteristic;
+            state = State.READY;
+            timeLastUsed = System.currentTimeMillis();
+        }
+        Log.i(TAG, "Connection ready: " + macAddress);
+        // everything waiting for this device can use the link now
+        BlueQueueSending.getInstance(context).linkReady(macAddress);
+    }
+
+    private final BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            super.onConnectionStateChange(gatt, status, newState);
+            releaseAdapter();
+            if (newState == BluetoothGatt.STATE_CONNECTED) {
+                Log.i(TAG, "Connected to GATT server: " + macAddress);
+                operations.complete(GattOperation.Type.CONNECT, null);
+            } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
+                Log.i(TAG, "Disconnected from GATT server: " + macAddress);
+                close("Disconnected from " + macAddress);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            super.onMtuChanged(gatt, mtu, status);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                operations.fail(GattOperation.Type.REQUEST_MTU, "Status: " + status);
+                return;
+            }
+            Bluecomm.getInstance(context).setMtu(macAddress, mtu);
+            operations.complete(GattOperation.Type.REQUEST_MTU, null);
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            super.onServicesDiscovered(gatt, status);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.i(TAG, "Failed to discover services. Status: " + status);
+                operations.fail(GattOperation.Type.DISCOVER_SERVICES, "Status: " + status);
+                return;
+            }
+            operations.complete(GattOperation.Type.DISCOVER_SERVICES, null);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            super.onCharacteristicWrite(gatt, characteristic, status);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                operations.fail(GattOperation.Type.WRITE, "GATT write failed with status: " + status);
+                return;
+            }
+            operations.complete(GattOperation.Type.WRITE, null);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            super.onCharacteristicRead(gatt, characteristic, status);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.i(TAG, "Failed to read characteristic. Status: " + status);
+                operations.fail(GattOperation.Type.READ, "Failed to read characteristic.");
+                return;
+            }
+            operations.complete(GattOperation.Type.READ, characteristic.getValue());
+        }
+    };
+
+    private synchronized BluetoothGatt getGatt() {
+        return gatt;
+    }
+
+    private synchronized void touch() {
+        timeLastUsed = System.currentTimeMillis();
+    }
+
+    public String getMacAddress() {
+        return macAddress;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized long getTimeLastUsed() {
+        return timeLastUsed;
+    }
+
+    /**
+     * Checks if there is nothing running or waiting on the queue.
+     */
+    public boolean isIdle() {
+        return operations.isEmpty();
+    }
+}
@@ -0,0 +1,167 @@
+package offgrid.geogram.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import offgrid.geogram.bluetooth.other.comms.DataCallbackTemplate;
+import offgrid.geogram.core.Log;
+
+/**
+ * Keeps GATT connections open to the devices we are writing to,
+ * so that all the parcels queued for a device share the same link.
+ * Connections without activity are closed after a while and only
+ * a limited number of them is kept open at the same time.
+ */
+public class BlueConnectionPool {
+
+    private static final String TAG = "BlueConnectionPool";
+
+    public static final int
+            maxConnections = 4;         // Android supports only a few links as central
+
+    public static final long
+            timeToBeIdle = 10_000,      // close links without activity for 10 seconds
+            timeBetweenEvictions = 2_000;
+
+    private static BlueConnectionPool instance = null;
+    private final Context context;
+
+    // Open connections, <MAC address, connection>
+    private final HashMap<String, BlueConnection> connections = new HashMap<>();
+
+    // Scheduler to close the idle connections
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private BlueConnectionPool(Context context) {
+        this.context = context.getApplicationContext();
+        scheduler.scheduleWithFixedDelay(this::evictIdleConnections,
+                timeBetweenEvictions, timeBetweenEvictions, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Provides the singleton instance of the BlueConnectionPool class.
+     */
+    public static synchronized BlueConnectionPool getInstance(Context context) {
+        if (instance == null) {
+            instance = new BlueConnectionPool(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Writes data to a device, reusing the connection when one is already open.
+     *
+     * @param device   The device to write to.
+     * @param data     The data to write.
+     * @param callback Callback to handle success or failure of the write operation.
+     */
+    public synchronized void write(BluetoothDevice device, byte[] data, DataCallbackTemplate callback) {
+        getConnection(device).write(data, callback);
+    }
+
+    /**
+     * Reads the characteristic of a device, reusing the connection when one is already open.
+     *
+     * @param device   The device to read from.
+     * @param callback Callback receiving the value read or the failure.
+     */
+    public synchronized void read(BluetoothDevice device, DataCallbackTemplate callback) {
+        getConnection(device).read(callback);
+    }
+
+    /**
+     * Gets the connection to a device, opening a new one when needed.
+     */
+    private BlueConnection getConnection(BluetoothDevice device) {
+        String macAddress = device.getAddress();
+        BlueConnection connection = connections.get(macAddress);
+        if (connection != null) {
+            return connection;
+        }
+        makeRoomForConnection();
+        connection = new BlueConnection(context, macAddress, this);
+        connections.put(macAddress, connection);
+        Log.i(TAG, "Opening connection to " + macAddress
+                + " (" + connections.size() + "/" + maxConnections + ")");
+        connection.open(device);
+        return connection;
+    }
+
+    /**
+     * Checks if there is a link open (or being opened) to a device.
+     */
+    public synchronized boolean isConnected(String macAddress) {
+        return connections.containsKey(macAddress);
+    }
+
+    /**
+     * Forgets a connection, called by the connection itself when closed.
+     */
+    synchronized void remove(BlueConnection connection) {
+        String macAddress = connection.getMacAddress();
+        if (connections.get(macAddress) == connection) {
+            connections.remove(macAddress);
+            Log.i(TAG, "Connection removed: " + macAddress);
+        }
+    }
+
+    /**
+     * When the limit of connections is reached, close the one
+     * used least recently, preferring those without pending writes.
+     */
+    private void makeRoomForConnection() {
+        if (connections.size() < maxConnections) {
+            return;
+        }
+        BlueConnection oldest = null;
+        for (BlueConnection connection : connections.values()) {
+            if (oldest == null
+                    || (connection.isIdle() && !oldest.isIdle())
+                    || (connection.isIdle() == oldest.isIdle()
+                        && connection.getTimeLastUsed() < oldest.getTimeLastUsed())) {
+                oldest = connection;
+            }
+        }
+        if (oldest != null) {
+            Log.i(TAG, "Too many connections, closing " + oldest.getMacAddress());
+            oldest.close("Connection closed to make room for others.");
+        }
+    }
+
+    /**
+     * Closes the connections without activity for too long.
+     */
+    private synchronized void evictIdleConnections() {
+        try {
+            long now = System.currentTimeMillis();
+            ArrayList<BlueConnection> toClose = new ArrayList<>();
+            for (BlueConnection connection : connections.values()) {
+                if (now - connection.getTimeLastUsed() > timeToBeIdle) {
+                    toClose.add(connection);
+                }
+            }
+            for (BlueConnection connection : toClose) {
+                Log.i(TAG, "Closing idle connection: " + connection.getMacAddress());
+                connection.close("Connection idle for too long.");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error closing idle connections: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes all the connections, e.g. when bluetooth is stopped.
+     */
+    public synchronized void closeAll() {
+        for (BlueConnection connection : new ArrayList<>(connections.values())) {
+            connection.close("Bluetooth stopped.");
+        }
+        connections.clear();
+    }
+}
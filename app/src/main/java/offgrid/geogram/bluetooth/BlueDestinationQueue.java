@@ -0,0 +1,223 @@
+package offgrid.geogram.bluetooth;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import offgrid.geogram.bluetooth.other.comms.BlueQueueParcel;
+import offgrid.geogram.wifi.comm.DeliveryPriority;
+
+/**
+ * The parcels waiting to be sent to one device. BlueQueueSending
+ * keeps one of these for each MAC address and serves them in turn,
+ * so a device that is slow or out of range doesn't hold back the
+ * parcels meant for the others.
+ */
+public class BlueDestinationQueue {
+
+    public static final long
+            timeToRaisePriority = 1000,     // parcels waiting this long move up one priority
+            timeParkedMinimum = 2_000,      // first pause after repeated failures
+            timeParkedMaximum = 60_000;     // longest pause, doubled on each park until here
+
+    public static final int
+            failuresToPark = 3;             // consecutive failed writes before pausing
+
+    private final String macAddress;
+
+    // one queue for each DeliveryPriority
+    private final ArrayList<ArrayDeque<BlueQueueParcel>> queues = new ArrayList<>();
+    // index of the data waiting on the queues, to find duplicates without
+    // going through them. ByteBuffer compares and hashes the content.
+    private final HashMap<ByteBuffer, Integer> dataWaiting = new HashMap<>();
+
+    // bytes this destination may still send on the current round
+    private int deficit = 0;
+    // parcels handed to the link and not yet confirmed
+    private int parcelsInFlight = 0;
+    // earliest time for the next parcel, paced by BlueRateController
+    private long timeNextParcel = 0;
+
+    private int failures = 0;
+    private int timesParked = 0;
+    private long timeParkedUntil = 0;
+
+    public BlueDestinationQueue(String macAddress) {
+        this.macAddress = macAddress;
+        for (int i = 0; i < DeliveryPriority.values().length; i++) {
+            queues.add(new ArrayDeque<>());
+        }
+    }
+
+    public void add(BlueQueueParcel item) {
+        queues.get(item.getPriority().ordinal()).add(item);
+        ByteBuffer key = ByteBuffer.wrap(item.getData());
+        Integer count = dataWaiting.get(key);
+        dataWaiting.put(key, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Gets the parcel that should leave next. Control commands go
+     * before data, but the parcel at the head of each queue is raised
+     * one level for each timeToRaisePriority spent waiting so that
+     * bulk data is not starved.
+     *
+     * @return the next parcel or null when there is nothing waiting
+     */
+    public BlueQueueParcel peek(long now) {
+        BlueQueueParcel result = null;
+        long resultLevel = Long.MAX_VALUE;
+        for (int i = 0; i < queues.size(); i++) {
+            BlueQueueParcel head = queues.get(i).peek();
+            if (head == null) {
+                continue;
+            }
+            long level = Math.max(0, i - (now - head.getTimestamp()) / timeToRaisePriority);
+            // on the same level, the parcel waiting longer goes first
+            if (level < resultLevel
+                    || (level == resultLevel && head.getTimestamp() < result.getTimestamp())) {
+                result = head;
+                resultLevel = level;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes a parcel returned by peek().
+     */
+    public void remove(BlueQueueParcel item) {
+        if (!queues.get(item.getPriority().ordinal()).remove(item)) {
+            return;
+        }
+        ByteBuffer key = ByteBuffer.wrap(item.getData());
+        Integer count = dataWaiting.get(key);
+        if (count == null || count <= 1) {
+            dataWaiting.remove(key);
+        } else {
+            dataWaiting.put(key, count - 1);
+        }
+    }
+
+    /**
+     * Takes every parcel waiting, in the order peek() would give them.
+     *
+     * @param parcels where the parcels are added
+     * @return number of parcels taken
+     */
+    public int drainTo(long now, List<BlueQueueParcel> parcels) {
+        int total = 0;
+        BlueQueueParcel item;
+        while ((item = peek(now)) != null) {
+            remove(item);
+            parcels.add(item);
+            total++;
+        }
+        return total;
+    }
+
+    public boolean isEmpty() {
+        for (ArrayDeque<BlueQueueParcel> queue : queues) {
+            if (!queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the same data is already waiting to be sent.
+     */
+    public boolean contains(byte[] data) {
+        return data != null && dataWaiting.containsKey(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Number of parcels waiting to be sent.
+     */
+    public int size() {
+        int result = 0;
+        for (ArrayDeque<BlueQueueParcel> queue : queues) {
+            result += queue.size();
+        }
+        return result;
+    }
+
+    /**
+     * A write to this device failed, pause it after too many in a row.
+     * The pause doubles on each park, up to timeParkedMaximum.
+     *
+     * @return true when the destination was parked now
+     */
+    public boolean onWriteError(long now) {
+        failures++;
+        if (failures < failuresToPark) {
+            return false;
+        }
+        long pause = Math.min(timeParkedMaximum, timeParkedMinimum << Math.min(timesParked, 16));
+        timeParkedUntil = now + pause;
+        timesParked++;
+        failures = 0;
+        deficit = 0;
+        return true;
+    }
+
+    public void onWriteSuccess() {
+        failures = 0;
+        timesParked = 0;
+    }
+
+    /**
+     * The device was seen again nearby, it can be tried right away.
+     */
+    public void unpark() {
+        timeParkedUntil = 0;
+        failures = 0;
+    }
+
+    /**
+     * Checks if this destination holds nothing worth keeping.
+     */
+    public boolean isIdle(long now) {
+        return isEmpty() && parcelsInFlight == 0 && failures == 0 && timesParked == 0
+                && !isParked(now);
+    }
+
+    public boolean isParked(long now) {
+        return now < timeParkedUntil;
+    }
+
+    public long getTimeParkedUntil() {
+        return timeParkedUntil;
+    }
+
+    public String getMacAddress() {
+        return macAddress;
+    }
+
+    public int getDeficit() {
+        return deficit;
+    }
+
+    public void setDeficit(int deficit) {
+        this.deficit = deficit;
+    }
+
+    public int getParcelsInFlight() {
+        return parcelsInFlight;
+    }
+
+    public void setParcelsInFlight(int parcelsInFlight) {
+        this.parcelsInFlight = parcelsInFlight;
+    }
+
+    public long getTimeNextParcel() {
+        return timeNextParcel;
+    }
+
+    public void setTimeNextParcel(long timeNextParcel) {
+        this.timeNextParcel = timeNextParcel;
+    }
+}
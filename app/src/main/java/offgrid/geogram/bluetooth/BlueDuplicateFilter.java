@@ -0,0 +1,161 @@
+package offgrid.geogram.bluetooth;
+
+import java.util.HashMap;
+
+import offgrid.geogram.bluetooth.other.comms.BlueFrameReader;
+
+/**
+ * Remembers the parcels received in the last moments to ignore
+ * copies of them, e.g. when a device sends a package again.
+ * <p>
+ * Each parcel is reduced to a 64-bit hash of the MAC address and
+ * the bytes of the frame, so checking costs the same no matter how
+ * many packages are kept. Hashes are kept in two generations: new
+ * ones go to the current set and, once the window has passed, the
+ * current set becomes the previous one and the oldest is dropped.
+ * A parcel is remembered at least for one window and at most two.
+ * <p>
+ * Each hash can belong to a group, e.g. the package of the parcel,
+ * so that the parcels of one package can be forgotten without
+ * touching the ones of other packages or devices.
+ */
+public class BlueDuplicateFilter {
+
+    // FNV-1a, good enough to tell frames apart and cheap to calculate
+    private static final long
+            FNV_OFFSET = 0xcbf29ce484222325L,
+            FNV_PRIME = 0x100000001b3L;
+
+    // hashes of frames that are not part of a group
+    public static final long NO_GROUP = -1;
+
+    private final long window;
+    // <hash, group>
+    private HashMap<Long, Long> current = new HashMap<>();
+    private HashMap<Long, Long> previous = new HashMap<>();
+    private long timeCurrentStarted = -1;
+
+    /**
+     * @param window time in milliseconds to remember a parcel
+     */
+    public BlueDuplicateFilter(long window) {
+        this.window = window;
+    }
+
+    /**
+     * Calculates the key of a frame received from a device.
+     */
+    public static long hash(String macAddress, byte[] frame) {
+        long hash = hashAddress(macAddress);
+        for (byte value : frame) {
+            hash = (hash ^ (value & 0xFF)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Hash of a single frame without the acknowledgements it carries.
+     * Those are taken again each time the package is written, so a
+     * copy written after a timeout would otherwise look like new data.
+     *
+     * @param macAddress device that wrote the frame
+     * @param frame      reader positioned on the single frame
+     */
+    public static long hashSingle(String macAddress, BlueFrameReader frame) {
+        byte[] data = frame.getData();
+        long hash = hashAddress(macAddress);
+        // the type without FLAG_ACKS, then id, command and device id
+        hash = (hash ^ (data[0] & 0xF0)) * FNV_PRIME;
+        for (int i = 1; i < frame.getAcksOffset(); i++) {
+            hash = (hash ^ (data[i] & 0xFF)) * FNV_PRIME;
+        }
+        for (int i = frame.getPayloadOffset(); i < data.length; i++) {
+            hash = (hash ^ (data[i] & 0xFF)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long hashAddress(String macAddress) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < macAddress.length(); i++) {
+            hash = (hash ^ macAddress.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Checks if the same frame was received recently.
+     *
+     * @param key see {@link #hash(String, byte[])}
+     * @param now current time in milliseconds
+     */
+    public synchronized boolean contains(long key, long now) {
+        rotate(now);
+        return current.containsKey(key) || previous.containsKey(key);
+    }
+
+    /**
+     * Remembers a frame that was received.
+     *
+     * @param key see {@link #hash(String, byte[])}
+     * @param now current time in milliseconds
+     */
+    public synchronized void add(long key, long now) {
+        add(key, NO_GROUP, now);
+    }
+
+    /**
+     * Remembers a frame that was received as part of a group.
+     *
+     * @param key   see {@link #hash(String, byte[])}
+     * @param group e.g. {@link BlueReassemblyTable#key(String, String)} of its package
+     * @param now   current time in milliseconds
+     */
+    public synchronized void add(long key, long group, long now) {
+        rotate(now);
+        current.put(key, group);
+    }
+
+    /**
+     * Forgets the frames of a group, e.g. a package that arrived
+     * damaged and needs its parcels again.
+     */
+    public synchronized void forget(long group) {
+        current.values().removeIf(value -> value == group);
+        previous.values().removeIf(value -> value == group);
+    }
+
+    /**
+     * Number of frames being remembered.
+     */
+    public synchronized int size() {
+        return current.size() + previous.size();
+    }
+
+    /**
+     * Forgets all frames, e.g. when a package needs to be received again.
+     */
+    public synchronized void clear() {
+        current.clear();
+        previous.clear();
+    }
+
+    private void rotate(long now) {
+        if (timeCurrentStarted == -1) {
+            timeCurrentStarted = now;
+            return;
+        }
+        if (now - timeCurrentStarted < window) {
+            return;
+        }
+        // a whole window without frames, nothing is worth keeping
+        if (now - timeCurrentStarted >= window * 2) {
+            current.clear();
+        }
+        HashMap<Long, Long> oldest = previous;
+        oldest.clear();
+        previous = current;
+        current = oldest;
+        timeCurrentStarted = now;
+    }
+}
@@ -0,0 +1,124 @@
+package offgrid.geogram.bluetooth;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import offgrid.geogram.core.Log;
+
+/**
+ * Holds the data written to our GATT server until it is processed.
+ * The binder callback only copies the bytes to a bounded ring and
+ * returns, a single thread then takes them out in order, so that
+ * packages are reassembled without several threads touching the
+ * same tables and without creating one thread for each parcel.
+ * <p>
+ * When the ring is full the write is dropped. Parcels are written
+ * without response, so the other device can't see a failed write:
+ * the GATT server tells it with a {@code >BUSY} command instead and
+ * it slows down (see BlueRateController), the parcels dropped are
+ * asked again later like any other lost parcel.
+ */
+public class BlueInboundQueue {
+
+    private static final String TAG = "BlueInboundQueue";
+
+    // writes waiting, with 512 bytes each this is at most 128 KB
+    public static final int capacityDefault = 256;
+
+    /**
+     * Processes the data that was written by another device.
+     */
+    public interface Listener {
+        void onDataReceived(String macAddress, byte[] data);
+    }
+
+    private static class Item {
+        final String macAddress;
+        final byte[] data;
+
+        Item(String macAddress, byte[] data) {
+            this.macAddress = macAddress;
+            this.data = data;
+        }
+    }
+
+    private final ArrayBlockingQueue<Item> items;
+    private final Listener listener;
+    private final Thread worker;
+    private final AtomicLong refused = new AtomicLong();
+    private volatile boolean isFull = false;
+    private volatile boolean isRunning = true;
+
+    /**
+     * @param capacity number of writes that can wait to be processed
+     * @param listener processes each write, always on the same thread
+     */
+    public BlueInboundQueue(int capacity, Listener listener) {
+        this.items = new ArrayBlockingQueue<>(capacity);
+        this.listener = listener;
+        this.worker = new Thread(this::run, TAG);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Places a copy of the data on the ring, never blocks.
+     *
+     * @return false when the ring is full and the data was refused
+     */
+    public boolean offer(String macAddress, byte[] data) {
+        if (isRunning && items.offer(new Item(macAddress, data.clone()))) {
+            if (isFull) {
+                isFull = false;
+                Log.i(TAG, "Accepting writes again, refused until now: " + refused.get());
+            }
+            return true;
+        }
+        refused.incrementAndGet();
+        if (isFull == false) {
+            isFull = true;
+            Log.e(TAG, "Queue is full, refusing writes from " + macAddress);
+        }
+        return false;
+    }
+
+    /**
+     * Number of writes waiting to be processed.
+     */
+    public int size() {
+        return items.size();
+    }
+
+    /**
+     * Number of writes refused because the ring was full.
+     */
+    public long getRefused() {
+        return refused.get();
+    }
+
+    /**
+     * Stops the thread, writes still waiting are discarded.
+     */
+    public void stop() {
+        isRunning = false;
+        worker.interrupt();
+        items.clear();
+    }
+
+    private void run() {
+        while (isRunning) {
+            Item item;
+            try {
+                item = items.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                listener.onDataReceived(item.macAddress, item.data);
+            } catch (Exception e) {
+                Log.e(TAG, "Exception while handling data from "
+                        + item.macAddress + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package offgrid.geogram.bluetooth;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lock to avoid collisions on the bluetooth radio.
+ * <p>
+ * There is no lock for each device: every connection has its own
+ * GattOperationQueue, which runs the connect, discovery, reads and
+ * writes of that device one at a time without stopping the others.
+ * <p>
+ * The adapter has a lock shared by the connections being opened and
+ * taken alone for a moment to start a scan, since some bluetooth
+ * stacks fail when a scan starts in the middle of a connection.
+ * A connection holds it until its callback arrives, so it can be
+ * released from another thread. It is taken with a time limit,
+ * whoever can't get it on time gives up instead of waiting forever.
+ */
+public class BlueLocks {
+
+    public static final long
+            timeToWaitForScan = 200;            // a scan is skipped, the next one comes soon
+
+    // a scan takes them all, each connection being opened takes one
+    private static final int adapterPermits = Integer.MAX_VALUE;
+
+    private static BlueLocks instance = null;
+
+    private final Semaphore adapter = new Semaphore(adapterPermits);
+
+    private BlueLocks() {
+    }
+
+    public static synchronized BlueLocks getInstance() {
+        if (instance == null) {
+            instance = new BlueLocks();
+        }
+        return instance;
+    }
+
+    /**
+     * Reserves the adapter to open a connection, many
+     * connections can hold it at the same time.
+     *
+     * @return true when it was reserved and needs to be unlocked
+     */
+    public boolean lockAdapterForConnection(long timeout) {
+        return tryAcquire(1, timeout);
+    }
+
+    public void unlockAdapterForConnection() {
+        adapter.release();
+    }
+
+    /**
+     * Reserves the adapter to start a scan, only when no
+     * connection is being opened.
+     *
+     * @return true when it was reserved and needs to be unlocked
+     */
+    public boolean lockAdapterForScan(long timeout) {
+        return tryAcquire(adapterPermits, timeout);
+    }
+
+    public void unlockAdapterForScan() {
+        adapter.release(adapterPermits);
+    }
+
+    private boolean tryAcquire(int permits, long timeout) {
+        try {
+            return adapter.tryAcquire(permits, timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Restore interrupted status
+            return false;
+        }
+    }
+}
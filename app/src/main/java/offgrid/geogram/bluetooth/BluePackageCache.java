@@ -0,0 +1,249 @@
+package offgrid.geogram.bluetooth;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import offgrid.geogram.bluetooth.other.comms.BlueFrame;
+import offgrid.geogram.bluetooth.other.comms.BluePackage;
+import offgrid.geogram.core.Log;
+
+/**
+ * Packages sent to other devices, kept to send them again when asked.
+ * <p>
+ * Memory is limited by the bytes of the packages: when the limit is
+ * passed the packages used longest ago leave the memory and their
+ * frames are written to a folder, from where they are read again if
+ * a device asks for them later. Package ids are a single byte, so the
+ * folder never holds more than 256 files.
+ * <p>
+ * Ids come from requests of other devices and become file names,
+ * anything that is not two hexadecimal characters is refused.
+ */
+public class BluePackageCache {
+
+    private static final String TAG = "BluePackageCache";
+    private static final String FILE_EXTENSION = ".bin";
+
+    private final long maxBytes;
+    private final File folder;
+    // access order, the first one is the one used longest ago
+    private final LinkedHashMap<String, BluePackage> packages =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Integer> sizes = new LinkedHashMap<>();
+    private long bytes = 0;
+
+    /**
+     * @param maxBytes bytes of packages kept in memory
+     * @param folder   where packages leaving the memory are written, or null to forget them
+     */
+    public BluePackageCache(long maxBytes, File folder) {
+        this.maxBytes = maxBytes;
+        this.folder = folder;
+        if (folder != null && folder.exists() == false && folder.mkdirs() == false) {
+            Log.e(TAG, "Unable to create folder: " + folder.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Keeps a package, replacing any other package with the same id.
+     */
+    public synchronized void put(BluePackage item) {
+        String id = item.getId();
+        // the frames are what gets written to disk, encode them now
+        item.getFrames();
+        remove(id);
+        int size = item.getMemorySize();
+        packages.put(id, item);
+        sizes.put(id, size);
+        bytes += size;
+        evict(id);
+    }
+
+    /**
+     * Gets a package from memory or, when it was written before, from disk.
+     *
+     * @return the package or null when it is not known
+     */
+    public synchronized BluePackage get(String id) {
+        if (isValidId(id) == false) {
+            Log.e(TAG, "Invalid package id: " + id);
+            return null;
+        }
+        BluePackage item = packages.get(id);
+        if (item != null) {
+            return item;
+        }
+        item = read(id);
+        if (item == null) {
+            return null;
+        }
+        Log.i(TAG, "Package read from disk: " + id);
+        int size = item.getMemorySize();
+        packages.put(id, item);
+        sizes.put(id, size);
+        bytes += size;
+        evict(id);
+        return item;
+    }
+
+    public synchronized boolean containsKey(String id) {
+        if (isValidId(id) == false) {
+            return false;
+        }
+        return packages.containsKey(id) || (folder != null && file(id).exists());
+    }
+
+    /**
+     * Forgets a package, both from memory and from disk.
+     */
+    public synchronized void remove(String id) {
+        if (isValidId(id) == false) {
+            return;
+        }
+        packages.remove(id);
+        Integer size = sizes.remove(id);
+        if (size != null) {
+            bytes -= size;
+        }
+        if (folder != null) {
+            File file = file(id);
+            if (file.exists() && file.delete() == false) {
+                Log.e(TAG, "Unable to delete file: " + file.getName());
+            }
+        }
+    }
+
+    /**
+     * Bytes of the packages kept in memory.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Number of packages kept in memory.
+     */
+    public synchronized int size() {
+        return packages.size();
+    }
+
+    public synchronized void clear() {
+        for (String id : new ArrayList<>(packages.keySet())) {
+            remove(id);
+        }
+        if (folder == null) {
+            return;
+        }
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(FILE_EXTENSION) && file.delete() == false) {
+                Log.e(TAG, "Unable to delete file: " + file.getName());
+            }
+        }
+    }
+
+    /**
+     * Moves packages to disk until the memory is under the limit,
+     * the package just added always stays.
+     */
+    private void evict(String idToKeep) {
+        Iterator<Map.Entry<String, BluePackage>> iterator = packages.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, BluePackage> entry = iterator.next();
+            String id = entry.getKey();
+            if (id.equals(idToKeep)) {
+                continue;
+            }
+            iterator.remove();
+            bytes -= sizes.remove(id);
+            write(entry.getValue());
+        }
+    }
+
+    /**
+     * Only the ids written by {@link BlueFrame#byteToId(byte)} are accepted.
+     */
+    private static boolean isValidId(String id) {
+        try {
+            return BlueFrame.byteToId(BlueFrame.idToByte(id)).equalsIgnoreCase(id);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private File file(String id) {
+        return new File(folder, id + FILE_EXTENSION);
+    }
+
+    /**
+     * Writes the timestamp and the frames of a package.
+     */
+    private void write(BluePackage item) {
+        if (folder == null) {
+            return;
+        }
+        List<byte[]> frames = item.getFrames();
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file(item.getId()))))) {
+            output.writeLong(item.getTimestamp());
+            output.writeInt(frames.size());
+            for (byte[] frame : frames) {
+                output.writeShort(frame.length);
+                output.write(frame);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write package " + item.getId() + ": " + e.getMessage());
+        }
+    }
+
+    private BluePackage read(String id) {
+        if (folder == null) {
+            return null;
+        }
+        File file = file(id);
+        if (file.exists() == false) {
+            return null;
+        }
+        BluePackage item = null;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)))) {
+            long timestamp = input.readLong();
+            int total = input.readInt();
+            ArrayList<byte[]> frames = new ArrayList<>(total);
+            for (int i = 0; i < total; i++) {
+                byte[] frame = new byte[input.readUnsignedShort()];
+                input.readFully(frame);
+                frames.add(frame);
+            }
+            item = BluePackage.createFromFrames(frames);
+            if (item != null) {
+                item.setTimestamp(timestamp);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read package " + id + ": " + e.getMessage());
+        }
+        if (item == null) {
+            Log.e(TAG, "Invalid package on disk: " + id);
+            return null;
+        }
+        // back in memory, the file is written again when it leaves
+        if (file.delete() == false) {
+            Log.e(TAG, "Unable to delete file: " + file.getName());
+        }
+        return item;
+    }
+}
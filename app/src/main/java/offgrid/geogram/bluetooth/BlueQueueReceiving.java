@@ -3,10 +3,8 @@ package offgrid.geogram.bluetooth;
 import android.content.Context;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
 import offgrid.geogram.bluetooth.broadcast.BroadcastMessage;
-import offgrid.geogram.bluetooth.other.comms.BluePackage;
 import offgrid.geogram.core.Log;
 
 /**
@@ -23,9 +21,13 @@ public class BlueQueueReceiving {
     // queue to store individual one-line messages to be received
     //private Thread queueThreadToReceive = null;
 
-    // Queue for data packages being built with what we receive from other devices
-    // <UID, BluePackage>
-    public final HashMap<String, BluePackage> packagesReceivedRecently = new HashMap<>();
+    // bytes of received packages kept in memory
+    public static final int memoryForPackagesReceived = 512 * 1024;
+
+    // Data packages being built with what we receive from other devices
+    // <MAC address + UID, BluePackage>
+    public final BlueReassemblyTable packagesReceivedRecently = new BlueReassemblyTable(
+            BlueTimerWheel.getInstance(), Bluecomm.packageTimeToBeActive, memoryForPackagesReceived);
 
 
     // These are the messages visible from the UI
@@ -68,12 +70,7 @@ public class BlueQueueReceiving {
      * @return true when we are receiving data
      */
     public boolean stillReceivingMessages() {
-        for(BluePackage pkg : packagesReceivedRecently.values()){
-            if(pkg.isStillActive()){
-                return true;
-            }
-        }
-        return false;
+        return packagesReceivedRecently.hasActiveTransfers();
     }
 
     public ArrayList<BroadcastMessage> getMessagesReceivedAsBroadcast(){
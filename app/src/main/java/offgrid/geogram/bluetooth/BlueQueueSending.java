@@ -1,18 +1,24 @@
 package offgrid.geogram.bluetooth;
 
-import static offgrid.geogram.bluetooth.Bluecomm.timeBetweenMessages;
-
 import android.content.Context;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.concurrent.BlockingQueue;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+import offgrid.geogram.bluetooth.other.comms.BlueFrame;
 import offgrid.geogram.bluetooth.other.comms.BluePackage;
 import offgrid.geogram.bluetooth.other.comms.BlueQueueParcel;
+import offgrid.geogram.bluetooth.other.comms.DataCallbackTemplate;
 import offgrid.geogram.core.Log;
 
 /**
@@ -21,11 +27,13 @@ import offgrid.geogram.core.Log;
  */
 public class BlueQueueSending {
 
-    // Queue for outgoing packages
-    public final HashMap<String, BluePackage> packagesToSend = new HashMap<>();
+    // Packages sent before, kept to send them again when asked
+    public final BluePackageCache packagesToSend;
 
-    // Queue for outgoing parcels
-    private final BlockingQueue<BlueQueueParcel> queueParcelToSend = new LinkedBlockingQueue<>();
+    // Parcels waiting to be sent, one queue for each device, <MAC address, queue>
+    private final HashMap<String, BlueDestinationQueue> destinations = new HashMap<>();
+    // Devices with parcels waiting, served in turn (deficit round-robin)
+    private final ArrayDeque<BlueDestinationQueue> roundRobin = new ArrayDeque<>();
 
     // Scheduler for message dispatching
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
@@ -33,9 +41,34 @@ public class BlueQueueSending {
     private static BlueQueueSending instance = null;
     private final Context context;
 
+    public static final int
+            windowSize = 4,                 // parcels in flight at the same time for each device
+            timeBetweenQueueChecks = 250,   // fallback check for parcels held back
+            quantum = Bluecomm.maxSizeOfAttribute, // bytes added to a device on each round
+            memoryForPackagesSent = 512 * 1024,     // bytes of sent packages kept in memory
+            maxPackagesTimed = 1024;                // packages waiting for an acknowledgement
+
+    // when the frames of a package were last written to a device, to measure
+    // the time until its acknowledgement, <MAC address and package id, record>
+    private final ConcurrentHashMap<Long, SendRecord> timesSent = new ConcurrentHashMap<>();
+
+    private static class SendRecord {
+        volatile long timeLastFrame;
+        // the acknowledgement can't tell which copy arrived (Karn's rule)
+        volatile boolean wasSentAgain = false;
+    }
+
+    // wakes the queue up when the next paced parcel is due
+    private ScheduledFuture<?> wakeUp = null;
+    private long timeWakeUp = 0;
+
     // Private constructor to prevent external instantiation
     private BlueQueueSending(Context context) {
         this.context = context.getApplicationContext();
+        // packages leaving the memory are kept on disk for late requests
+        File folder = this.context.getCacheDir() == null
+                ? null : new File(this.context.getCacheDir(), "packages-sent");
+        this.packagesToSend = new BluePackageCache(memoryForPackagesSent, folder);
     }
 
     /**
@@ -51,7 +84,7 @@ public class BlueQueueSending {
     }
 
     public void start() {
-        scheduler.scheduleWithFixedDelay(this::processQueue, 0, timeBetweenMessages, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::processQueue, 0, timeBetweenQueueChecks, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -61,14 +94,14 @@ public class BlueQueueSending {
      */
     public void addPackageToSend(BluePackage packageToSend) {
         String uid = packageToSend.getId();
-        HashMap<String, BluePackage> packagesReceivedRecently
+        BlueReassemblyTable packagesReceivedRecently
                 = BlueQueueReceiving.getInstance(context).packagesReceivedRecently;
         // Avoid duplicates
-        if (packagesReceivedRecently.containsKey(uid)) {
+        if (packagesReceivedRecently.containsPackageId(uid)) {
             return;
         }
         Log.i(TAG, "Adding package to send: " + uid);
-        packagesToSend.put(uid, packageToSend);
+        packagesToSend.put(packageToSend);
     }
 
     /**
@@ -76,34 +109,237 @@ public class BlueQueueSending {
      *
      * @param item The BlueQueueItem to be sent elsewhere
      */
-    public void addQueueToSend(BlueQueueParcel item) {
+    public synchronized void addQueueToSend(BlueQueueParcel item) {
         if (item == null || item.getData() == null) {
             Log.e(TAG, "Null item received for sending");
             return;
         }
-        queueParcelToSend.add(item);
+        BlueDestinationQueue destination = getDestination(item.getMacAddress());
+        if (destination.isEmpty()) {
+            roundRobin.add(destination);
+        }
+        destination.add(item);
+        scheduler.execute(this::processQueue);
     }
 
     /**
-     * Processes the message queue.
+     * The device was spotted nearby, try again the parcels that
+     * were paused after failing to reach it.
+     *
+     * @param macAddress The MAC address of the device.
      */
-    private void processQueue() {
-        try {
-            if (queueParcelToSend.isEmpty()) {
+    public synchronized void deviceSeen(String macAddress) {
+        BlueDestinationQueue destination = destinations.get(macAddress);
+        if (destination == null || !destination.isParked(System.currentTimeMillis())) {
+            return;
+        }
+        Log.i(TAG, "Device " + macAddress + " is back, resuming its parcels");
+        destination.unpark();
+        scheduler.execute(this::processQueue);
+    }
+
+    /**
+     * The link to a device is open, hand it every parcel waiting for
+     * that device in priority order. The writes wait on the queue of
+     * the link and leave one after the other as each one completes,
+     * so the whole backlog goes through one connection instead of
+     * waiting for a turn of the round-robin for each window of parcels.
+     *
+     * @param macAddress The MAC address of the device.
+     */
+    public void linkReady(String macAddress) {
+        // away from the GATT callback that announced the link
+        scheduler.execute(() -> flush(macAddress));
+    }
+
+    private void flush(String macAddress) {
+        ArrayList<BlueQueueParcel> parcels = new ArrayList<>();
+        synchronized (this) {
+            BlueDestinationQueue destination = destinations.get(macAddress);
+            if (destination == null) {
                 return;
             }
-
-            if (BlueQueueReceiving.getInstance(context).stillReceivingMessages()) {
+            // the device answered, no reason to keep it paused
+            destination.unpark();
+            int total = destination.drainTo(System.currentTimeMillis(), parcels);
+            if (total == 0) {
                 return;
             }
+            destination.setParcelsInFlight(destination.getParcelsInFlight() + total);
+            destination.setDeficit(0);
+            // an empty device leaves the round, addQueueToSend brings it back
+            if (destination.isEmpty()) {
+                roundRobin.remove(destination);
+            }
+        }
+        Log.i(TAG, "Link to " + macAddress + " is open, sending " + parcels.size() + " parcels");
+        for (BlueQueueParcel item : parcels) {
+            send(item);
+        }
+    }
 
-            BlueQueueParcel item = queueParcelToSend.poll();
-            if (item != null && item.getData() != null) {
-                Bluecomm.getInstance(context).writeData(item);
+    /**
+     * Processes the message queues. Devices take turns with a budget
+     * of bytes for each round, so a slow or unreachable device doesn't
+     * hold back the others. Each device gets up to windowSize parcels
+     * in flight on its link, the next ones leave as the writes before
+     * them are confirmed, spaced by the rate of that device.
+     */
+    private void processQueue() {
+        ArrayList<BlueQueueParcel> parcels = new ArrayList<>();
+        try {
+            synchronized (this) {
+                selectParcels(parcels);
             }
         } catch (Exception e) {
-            Log.e(TAG, "Error sending data: " + e.getMessage());
+            Log.e(TAG, "Error selecting data to send: " + e.getMessage());
+        }
+        // outside the lock, the callbacks of the link may arrive right away
+        for (BlueQueueParcel item : parcels) {
+            send(item);
+        }
+    }
+
+    /**
+     * Goes once through the devices with parcels waiting and picks
+     * the parcels that can leave now.
+     */
+    private void selectParcels(ArrayList<BlueQueueParcel> parcels) {
+        if (roundRobin.isEmpty()) {
+            return;
+        }
+
+        // while receiving, avoid opening new links that would disturb the radio
+        boolean stillReceiving = BlueQueueReceiving.getInstance(context).stillReceivingMessages();
+        BlueConnectionPool pool = BlueConnectionPool.getInstance(context);
+        BlueRateController rateController = BlueRateController.getInstance();
+        long now = System.currentTimeMillis();
+        long timeNextDue = Long.MAX_VALUE;
+
+        int turns = roundRobin.size();
+        for (int i = 0; i < turns; i++) {
+            BlueDestinationQueue destination = roundRobin.poll();
+            String macAddress = destination.getMacAddress();
+
+            if (destination.isParked(now)) {
+                timeNextDue = Math.min(timeNextDue, destination.getTimeParkedUntil());
+            } else if (stillReceiving && !pool.isConnected(macAddress)) {
+                // wait for the other device to finish
+            } else if (destination.getParcelsInFlight() < windowSize) {
+                if (destination.getTimeNextParcel() > now) {
+                    timeNextDue = Math.min(timeNextDue, destination.getTimeNextParcel());
+                } else {
+                    destination.setDeficit(destination.getDeficit() + quantum);
+                }
+                while (destination.getParcelsInFlight() < windowSize
+                        && destination.getTimeNextParcel() <= now) {
+                    BlueQueueParcel item = destination.peek(now);
+                    if (item == null || item.getData().length > destination.getDeficit()) {
+                        break;
+                    }
+                    destination.remove(item);
+                    destination.setDeficit(destination.getDeficit() - item.getData().length);
+                    destination.setParcelsInFlight(destination.getParcelsInFlight() + 1);
+                    destination.setTimeNextParcel(now + rateController.getInterval(macAddress));
+                    parcels.add(item);
+                }
+            }
+
+            if (destination.isEmpty()) {
+                // no credit is kept while there is nothing to send
+                destination.setDeficit(0);
+                if (destination.isIdle(now)) {
+                    destinations.remove(macAddress);
+                }
+            } else {
+                roundRobin.add(destination);
+            }
+        }
+        if (timeNextDue != Long.MAX_VALUE) {
+            scheduleWakeUp(timeNextDue, now);
+        }
+    }
+
+    /**
+     * Hands a parcel to the link of its device.
+     */
+    private void send(BlueQueueParcel item) {
+        String macAddress = item.getMacAddress();
+        byte[] data = item.getData();
+        // acknowledgements waiting for this device can travel inside a single frame
+        List<String> acks = Collections.emptyList();
+        if (BlueFrame.canCarryAcks(data)) {
+            int room = Bluecomm.getInstance(context).getMaxFrameSize(macAddress) - data.length - 1;
+            if (room > 0) {
+                acks = BlueAckBatcher.getInstance(context).take(macAddress, Math.min(room, 0xFF));
+            }
+            if (acks.isEmpty() == false) {
+                data = BlueFrame.addAcks(data, acks);
+            }
+        }
+        List<String> acksCarried = acks;
+        Bluecomm.getInstance(context).writeData(macAddress, data,
+                new DataCallbackTemplate() {
+                    @Override
+                    public void onDataSuccess(String data) {
+                        BlueRateController.getInstance().onWriteSuccess(macAddress);
+                        frameSent(macAddress, item.getData());
+                        scheduler.execute(() -> sendingFinished(macAddress, true));
+                    }
+
+                    @Override
+                    public void onDataError(String errorMessage) {
+                        Log.e(TAG, "Error sending data to " + macAddress + ": " + errorMessage);
+                        BlueRateController.getInstance().onWriteError(macAddress);
+                        // the acknowledgements inside didn't leave either
+                        if (acksCarried.isEmpty() == false) {
+                            BlueAckBatcher.getInstance(context).putBack(macAddress, acksCarried);
+                        }
+                        scheduler.execute(() -> sendingFinished(macAddress, false));
+                    }
+                });
+    }
+
+    /**
+     * A write was confirmed (or failed), there is room for another parcel.
+     * Devices failing too many times in a row are parked for a while.
+     */
+    private void sendingFinished(String macAddress, boolean success) {
+        synchronized (this) {
+            BlueDestinationQueue destination = getDestination(macAddress);
+            destination.setParcelsInFlight(Math.max(0, destination.getParcelsInFlight() - 1));
+            long now = System.currentTimeMillis();
+            if (success) {
+                destination.onWriteSuccess();
+            } else if (destination.onWriteError(now)) {
+                Log.i(TAG, "Parking " + macAddress + " for "
+                        + (destination.getTimeParkedUntil() - now) + " ms after repeated failures");
+            }
+        }
+        processQueue();
+    }
+
+    /**
+     * Makes sure the queue is processed again when a paced parcel is due.
+     */
+    private void scheduleWakeUp(long time, long now) {
+        if (wakeUp != null && !wakeUp.isDone() && timeWakeUp <= time) {
+            return;
+        }
+        if (wakeUp != null) {
+            wakeUp.cancel(false);
         }
+        timeWakeUp = time;
+        wakeUp = scheduler.schedule(this::processQueue, time - now, TimeUnit.MILLISECONDS);
+    }
+
+    private BlueDestinationQueue getDestination(String macAddress) {
+        BlueDestinationQueue destination = destinations.get(macAddress);
+        if (destination == null) {
+            destination = new BlueDestinationQueue(macAddress);
+            destinations.put(macAddress, destination);
+        }
+        return destination;
     }
 
     /**
@@ -113,21 +349,91 @@ public class BlueQueueSending {
      * @return true when it is a duplicate message
      */
     public boolean isAlreadyOnQueueToSend(String message, String macAddress) {
-        for (BlueQueueParcel item : queueParcelToSend) {
-            // Needs to match the mac address
-            if (!item.getMacAddress().equals(macAddress)) {
-                continue;
-            }
-            // Is the data same?
-            if (item.getData().equals(message)) {
-                return true;
+        return isAlreadyOnQueueToSend(message.getBytes(StandardCharsets.UTF_8), macAddress);
+    }
+
+    /**
+     * Checks if a specific frame is already on the queue to be dispatched
+     * to another device and avoid repetition of messages.
+     * @param message to be compared
+     * @return true when it is a duplicate message
+     */
+    public synchronized boolean isAlreadyOnQueueToSend(byte[] message, String macAddress) {
+        BlueDestinationQueue destination = destinations.get(macAddress);
+        return destination != null && destination.contains(message);
+    }
+
+    /**
+     * Notes when the frames of a package left, the last one
+     * starts the wait for the acknowledgement.
+     */
+    private void frameSent(String macAddress, byte[] data) {
+        if (BlueFrame.isFrame(data) == false || data.length < 2) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long key = BlueReassemblyTable.key(macAddress, BlueFrame.byteToId(data[1]));
+        SendRecord record = timesSent.get(key);
+        if (record == null) {
+            if (timesSent.size() >= maxPackagesTimed) {
+                forgetOldSendRecords(now);
             }
+            record = new SendRecord();
+            timesSent.put(key, record);
         }
-        return false;
+        record.timeLastFrame = now;
+    }
+
+    /**
+     * Parcels of a package are being sent again to a device, the
+     * acknowledgement that follows is no longer a measure of the link.
+     */
+    public void markSentAgain(String macAddress, String packageId) {
+        SendRecord record = getSendRecord(macAddress, packageId, false);
+        if (record != null) {
+            record.wasSentAgain = true;
+        }
+    }
+
+    /**
+     * A device acknowledged a package, gets the time since its last frame left.
+     *
+     * @return milliseconds, or -1 when unknown or when parcels were sent again
+     */
+    public long takeRoundTrip(String macAddress, String packageId, long now) {
+        SendRecord record = getSendRecord(macAddress, packageId, true);
+        if (record == null || record.wasSentAgain) {
+            return -1;
+        }
+        return now - record.timeLastFrame;
+    }
+
+    /**
+     * The package ids come from other devices, invalid ones are not known.
+     */
+    private SendRecord getSendRecord(String macAddress, String packageId, boolean remove) {
+        long key;
+        try {
+            key = BlueReassemblyTable.key(macAddress, packageId);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return remove ? timesSent.remove(key) : timesSent.get(key);
+    }
+
+    /**
+     * Packages that were never acknowledged, e.g. a broadcast,
+     * are forgotten after the longest wait of BlueRttEstimator.
+     */
+    private void forgetOldSendRecords(long now) {
+        timesSent.values().removeIf(
+                record -> now - record.timeLastFrame > BlueRttEstimator.timeoutMaximum);
     }
 
-    public void clear() {
+    public synchronized void clear() {
+        timesSent.clear();
         packagesToSend.clear();
-        queueParcelToSend.clear();
+        destinations.clear();
+        roundRobin.clear();
     }
 }
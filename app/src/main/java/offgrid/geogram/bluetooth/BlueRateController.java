@@ -0,0 +1,165 @@
+package offgrid.geogram.bluetooth;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+import offgrid.geogram.core.Log;
+
+/**
+ * Decides how fast parcels are sent to each device.
+ * The rate grows a little with every write that succeeds and
+ * is cut in half when a write fails or the other device asks
+ * for parcels again (additive increase, multiplicative decrease),
+ * so that the speed follows the quality of each link.
+ */
+public class BlueRateController {
+
+    private static final String TAG = "BlueRateController";
+
+    // rates are in parcels per second
+    public static final double
+            rateInitial = 20,
+            rateMinimum = 2,
+            rateMaximum = 200,
+            rateIncrease = 1,       // added after each write that succeeds
+            rateDecrease = 0.5;     // multiplied on errors and gap requests
+
+    // losses in a burst are usually caused by the same event, cut only once
+    public static final long timeBetweenDecreases = 500;
+
+    // weight of each new write on the estimate of parcels lost
+    public static final double lossWeight = 0.1;
+
+    private static BlueRateController instance = null;
+
+    // current rate for each device, <MAC address, parcels per second>
+    private final HashMap<String, Double> rates = new HashMap<>();
+    // last time the rate was decreased, <MAC address, time>
+    private final HashMap<String, Long> timeLastDecrease = new HashMap<>();
+    // estimate of the fraction of parcels lost, <MAC address, 0 to 1>
+    private final HashMap<String, Double> lossRates = new HashMap<>();
+
+    private BlueRateController() {
+    }
+
+    /**
+     * Provides the singleton instance of the BlueRateController class.
+     */
+    public static synchronized BlueRateController getInstance() {
+        if (instance == null) {
+            instance = new BlueRateController();
+        }
+        return instance;
+    }
+
+    /**
+     * Gets the current rate used for a device.
+     *
+     * @param macAddress The MAC address of the device.
+     * @return parcels per second
+     */
+    public synchronized double getRate(String macAddress) {
+        Double rate = rates.get(macAddress);
+        return rate == null ? rateInitial : rate;
+    }
+
+    /**
+     * Gets the time to wait between two parcels sent to a device.
+     *
+     * @param macAddress The MAC address of the device.
+     * @return interval in milliseconds
+     */
+    public synchronized long getInterval(String macAddress) {
+        return (long) (1000 / getRate(macAddress));
+    }
+
+    /**
+     * Gets a copy of the rates currently used, e.g. to display or log them.
+     *
+     * @return map of <MAC address, parcels per second>
+     */
+    public synchronized HashMap<String, Double> getRates() {
+        return new HashMap<>(rates);
+    }
+
+    /**
+     * A parcel was written with success to the device.
+     */
+    public synchronized void onWriteSuccess(String macAddress) {
+        rates.put(macAddress, Math.min(rateMaximum, getRate(macAddress) + rateIncrease));
+        updateLossRate(macAddress, 0);
+    }
+
+    /**
+     * The link failed to write a parcel to the device.
+     */
+    public synchronized void onWriteError(String macAddress) {
+        updateLossRate(macAddress, 1);
+        decrease(macAddress, "write error");
+    }
+
+    /**
+     * The device asked for parcels again, so some were lost on the way.
+     */
+    public synchronized void onParcelRequested(String macAddress) {
+        updateLossRate(macAddress, 1);
+        decrease(macAddress, "gap request");
+    }
+
+    /**
+     * The device is receiving faster than it can process and
+     * dropped what we wrote, which counts as a loss.
+     */
+    public synchronized void onBusy(String macAddress) {
+        updateLossRate(macAddress, 1);
+        decrease(macAddress, "device busy");
+    }
+
+    /**
+     * Gets the estimate of the fraction of parcels lost towards a device.
+     *
+     * @param macAddress The MAC address of the device.
+     * @return value from 0 (nothing lost) to 1 (everything lost)
+     */
+    public synchronized double getLossRate(String macAddress) {
+        Double lossRate = lossRates.get(macAddress);
+        return lossRate == null ? 0 : lossRate;
+    }
+
+    /**
+     * Gets the highest loss rate among several devices, e.g. for a broadcast.
+     */
+    public synchronized double getLossRate(Collection<String> macAddresses) {
+        double result = 0;
+        for (String macAddress : macAddresses) {
+            result = Math.max(result, getLossRate(macAddress));
+        }
+        return result;
+    }
+
+    /**
+     * Forgets what was learned about the devices.
+     */
+    public synchronized void clear() {
+        rates.clear();
+        timeLastDecrease.clear();
+        lossRates.clear();
+    }
+
+    private void updateLossRate(String macAddress, double sample) {
+        double lossRate = getLossRate(macAddress) * (1 - lossWeight) + sample * lossWeight;
+        lossRates.put(macAddress, lossRate);
+    }
+
+    private void decrease(String macAddress, String reason) {
+        long now = System.currentTimeMillis();
+        Long lastDecrease = timeLastDecrease.get(macAddress);
+        if (lastDecrease != null && now - lastDecrease < timeBetweenDecreases) {
+            return;
+        }
+        timeLastDecrease.put(macAddress, now);
+        double rate = Math.max(rateMinimum, getRate(macAddress) * rateDecrease);
+        rates.put(macAddress, rate);
+        Log.i(TAG, "Rate to " + macAddress + " reduced to " + rate + " parcels/s after " + reason);
+    }
+}
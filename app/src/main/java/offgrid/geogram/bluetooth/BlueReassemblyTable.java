@@ -0,0 +1,281 @@
+package offgrid.geogram.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import offgrid.geogram.bluetooth.other.comms.BlueFrame;
+import offgrid.geogram.bluetooth.other.comms.BluePackage;
+import offgrid.geogram.core.Log;
+
+/**
+ * Packages being received from other devices, kept until they are
+ * complete or stop moving.
+ * <p>
+ * Package ids are a single random byte, so two devices can easily
+ * pick the same one. Packages are kept per sender: the parcels don't
+ * carry the device id, so the key is the MAC address (6 bytes) and
+ * the package id (1 byte), packed on a long to look them up without
+ * creating objects.
+ * <p>
+ * Each package has one timer on the {@link BlueTimerWheel}: while
+ * parcels keep arriving the package counts as an active transfer,
+ * after that it is kept for a while (to ignore packages sent again)
+ * and then forgotten.
+ * <p>
+ * Memory is limited by the bytes of the packages, when the limit is
+ * passed the packages that received a parcel longest ago are forgotten
+ * before their time.
+ */
+public class BlueReassemblyTable {
+
+    private static final String TAG = "BlueReassemblyTable";
+
+    // packages already complete are kept to ignore copies sent again
+    public static final long timeToKeepComplete = 60 * 1000;
+    // packages that stopped moving are forgotten after this time
+    public static final long timeToKeepIncomplete = 3 * 60 * 1000;
+
+    private class Entry {
+        final long key;
+        final BluePackage item;
+        volatile long timeLastActive;
+        boolean isActive = false;
+        boolean isComplete = false;
+        int bytes = 0;
+        BlueTimerWheel.Timeout timeout = null;
+
+        Entry(long key, BluePackage item, long now) {
+            this.key = key;
+            this.item = item;
+            this.timeLastActive = now;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+    // same entries in access order, the first one is the one used longest ago
+    private final LinkedHashMap<Long, Entry> order = new LinkedHashMap<>(16, 0.75f, true);
+    private final BlueTimerWheel wheel;
+    private final long timeToBeActive;
+    private final long maxBytes;
+    private int activeTotal = 0;
+    private long bytes = 0;
+
+    /**
+     * @param wheel          where the timers of each package wait
+     * @param timeToBeActive time without parcels after which a transfer is no longer active
+     * @param maxBytes       bytes of packages kept in memory
+     */
+    public BlueReassemblyTable(BlueTimerWheel wheel, long timeToBeActive, long maxBytes) {
+        this.wheel = wheel;
+        this.timeToBeActive = timeToBeActive;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Packs the MAC address and the package id on a single number.
+     */
+    public static long key(String macAddress, String packageId) {
+        long key = 0;
+        for (int i = 0; i < macAddress.length(); i++) {
+            int digit = Character.digit(macAddress.charAt(i), 16);
+            if (digit >= 0) {
+                key = (key << 4) | digit;
+            }
+        }
+        return (key << 8) | (BlueFrame.idToByte(packageId) & 0xFF);
+    }
+
+    public BluePackage get(String macAddress, String packageId) {
+        Entry entry = entries.get(key(macAddress, packageId));
+        return entry == null ? null : entry.item;
+    }
+
+    /**
+     * Starts keeping a package whose header has just arrived.
+     */
+    public void put(String macAddress, BluePackage item, long now) {
+        Entry entry = new Entry(key(macAddress, item.getId()), item, now);
+        Entry previous = entries.put(entry.key, entry);
+        synchronized (this) {
+            if (previous != null) {
+                forget(previous);
+                bytes -= previous.bytes;
+            }
+            order.put(entry.key, entry);
+            activate(entry, now);
+            resize(entry);
+        }
+    }
+
+    /**
+     * A parcel of the package arrived, the transfer is active.
+     */
+    public void touch(String macAddress, String packageId, long now) {
+        Entry entry = entries.get(key(macAddress, packageId));
+        if (entry == null) {
+            return;
+        }
+        entry.timeLastActive = now;
+        synchronized (this) {
+            if (order.get(entry.key) != entry) {
+                return;
+            }
+            activate(entry, now);
+            resize(entry);
+        }
+    }
+
+    /**
+     * The package was received, it is no longer an active transfer
+     * but stays for a while to ignore copies of it.
+     */
+    public void complete(String macAddress, String packageId, long now) {
+        Entry entry = entries.get(key(macAddress, packageId));
+        if (entry == null) {
+            return;
+        }
+        synchronized (this) {
+            if (order.get(entry.key) != entry) {
+                return;
+            }
+            entry.isComplete = true;
+            deactivate(entry);
+            schedule(entry, now + timeToKeepComplete);
+            resize(entry);
+        }
+    }
+
+    /**
+     * Checks if any package is still arriving.
+     */
+    public synchronized boolean hasActiveTransfers() {
+        return activeTotal > 0;
+    }
+
+    public synchronized int getActiveTotal() {
+        return activeTotal;
+    }
+
+    /**
+     * Checks if a package with this id is kept, from any device.
+     */
+    public boolean containsPackageId(String packageId) {
+        for (Entry entry : entries.values()) {
+            if (entry.item.getId().equals(packageId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy of the packages being kept.
+     */
+    public ArrayList<BluePackage> getPackages() {
+        ArrayList<BluePackage> result = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            result.add(entry.item);
+        }
+        return result;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Bytes of the packages being kept.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            forget(entry);
+        }
+        entries.clear();
+        order.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Updates the bytes of a package that changed and forgets
+     * the packages used longest ago while above the limit.
+     */
+    private void resize(Entry entry) {
+        int size = entry.item.getMemorySize();
+        bytes += size - entry.bytes;
+        entry.bytes = size;
+        Iterator<Entry> iterator = order.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            if (eldest == entry) {
+                continue;
+            }
+            iterator.remove();
+            entries.remove(eldest.key, eldest);
+            forget(eldest);
+            bytes -= eldest.bytes;
+            Log.i(TAG, "Memory limit reached, forgetting package " + eldest.item.getId());
+        }
+    }
+
+    private void activate(Entry entry, long now) {
+        if (entry.isActive || entry.isComplete) {
+            return;
+        }
+        entry.isActive = true;
+        activeTotal++;
+        schedule(entry, now + timeToBeActive);
+    }
+
+    private void deactivate(Entry entry) {
+        if (entry.isActive) {
+            entry.isActive = false;
+            activeTotal--;
+        }
+    }
+
+    private void forget(Entry entry) {
+        deactivate(entry);
+        if (entry.timeout != null) {
+            entry.timeout.cancel();
+        }
+    }
+
+    private void schedule(Entry entry, long deadline) {
+        if (entry.timeout != null) {
+            entry.timeout.cancel();
+        }
+        entry.timeout = wheel.schedule(() -> onTimeout(entry), deadline);
+    }
+
+    /**
+     * Timers are not moved on every parcel, when one fires it
+     * checks the latest activity and waits again if needed.
+     */
+    private synchronized void onTimeout(Entry entry) {
+        if (entries.get(entry.key) != entry) {
+            return;
+        }
+        long idle = wheel.getTime() - entry.timeLastActive;
+        if (entry.isActive) {
+            if (idle < timeToBeActive) {
+                schedule(entry, entry.timeLastActive + timeToBeActive);
+                return;
+            }
+            deactivate(entry);
+        }
+        long timeToKeep = entry.isComplete ? timeToKeepComplete : timeToKeepIncomplete;
+        if (idle < timeToKeep && entry.isComplete == false) {
+            schedule(entry, entry.timeLastActive + timeToKeep);
+            return;
+        }
+        entries.remove(entry.key, entry);
+        order.remove(entry.key);
+        bytes -= entry.bytes;
+    }
+}
@@ -2,18 +2,27 @@ package offgrid.geogram.bluetooth;
 
 import static offgrid.geogram.bluetooth.broadcast.BroadcastSender.sendPackageToDevice;
 import static offgrid.geogram.bluetooth.other.comms.BlueCommands.oneLineAcknowledgement;
+import static offgrid.geogram.bluetooth.other.comms.BlueCommands.oneLineCommandBusy;
 import static offgrid.geogram.bluetooth.other.comms.BlueCommands.oneLineCommandBio;
 import static offgrid.geogram.bluetooth.other.comms.BlueCommands.oneLineCommandGapBroadcast;
+import static offgrid.geogram.bluetooth.other.comms.BlueCommands.gapNACK;
 import static offgrid.geogram.bluetooth.other.comms.BlueCommands.gapREPEAT;
 import static offgrid.geogram.bluetooth.other.comms.BlueCommands.oneLineCommandPing;
 
 import android.content.Context;
 
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 
 import offgrid.geogram.bluetooth.broadcast.BroadcastMessage;
 import offgrid.geogram.bluetooth.other.comms.BlueCommands;
+import offgrid.geogram.bluetooth.other.comms.BlueFrame;
+import offgrid.geogram.bluetooth.other.comms.BlueFrameReader;
+import offgrid.geogram.bluetooth.other.comms.BlueNack;
 import offgrid.geogram.bluetooth.other.comms.BluePackage;
+import offgrid.geogram.bluetooth.other.comms.DataType;
 import offgrid.geogram.core.Log;
 import offgrid.geogram.bluetooth.broadcast.LostAndFound;
 import offgrid.geogram.database.BioDatabase;
@@ -40,6 +49,14 @@ public class BlueReceiver {
     private static BlueReceiver instance;
     private static final String TAG = "BlueReceiver";
 
+    // frames are read in place, each thread reuses its own reader
+    private static final ThreadLocal<BlueFrameReader> reader =
+            ThreadLocal.withInitial(BlueFrameReader::new);
+
+    // parcels received recently, to ignore the copies that arrive again
+    public static final long timeToRememberParcels = 60 * 1000;
+    private final BlueDuplicateFilter duplicates = new BlueDuplicateFilter(timeToRememberParcels);
+
     // Private constructor to prevent instantiation from outside
     private BlueReceiver() {
         //startCleanupThread(); // Start cleanup thread upon initialization
@@ -67,65 +84,97 @@ public class BlueReceiver {
      * @param macAddress MAC address of the bluetooth device
      * @param receivedData request that was received
      */
-    public void receivingDataFromDevice(String macAddress, String receivedData, Context context) {
+    public void receivingDataFromDevice(String macAddress, byte[] receivedData, Context context) {
         // avoid null addresses
         if (macAddress == null) {
             Log.e(TAG, "Null MAC address received");
             return;
         }
 
-        // output a log of what is received
-        Log.i(TAG, "Received data from " + macAddress + ": " + receivedData);
-
-        // needs to always contain an :
-        if(receivedData == null || !receivedData.contains(":")){
-            Log.e(TAG, "Invalid data received: " + receivedData);
+        if(receivedData == null || receivedData.length == 0){
+            Log.e(TAG, "Empty data received from " + macAddress);
             return;
         }
 
+        // examples of messages (frames are binary, shown here as text):
+        // HX:005:1A2B3C4D:B:2a1a78 -> data header
+        // HX000:/bio:{"color":     -> data parcel
+        // >B:REPEAT:HX             -> single command
 
-        // was this parcel received before?
-        if(wasSameParcelReceivedRecently(macAddress, receivedData, context)){
+        // read the fields in one pass, without creating objects for each frame
+        BlueFrameReader frame = reader.get();
+        BlueFrameReader.Kind kind = frame.read(receivedData);
+
+        // is this a single command?
+        if(kind == BlueFrameReader.Kind.COMMAND){
+            String text = frame.getCommand();
+            Log.i(TAG, "Received data from " + macAddress + ": " + text);
+            processSingleCommandReceived(macAddress, text, context);
+            return;
+        }
+        if(kind == BlueFrameReader.Kind.INVALID){
+            Log.e(TAG, "Invalid data received from " + macAddress);
             return;
         }
 
-        // examples of messages:
-        // HX:005:TCHA:B:2a1a78 -> data header
-        // HX000:/bio:{"color": -> data parcel
-        // >B:REPEAT:HZ         -> single command
+        // was this parcel received before?
+        long now = System.currentTimeMillis();
+        long key = kind == BlueFrameReader.Kind.SINGLE
+                ? BlueDuplicateFilter.hashSingle(macAddress, frame)
+                : BlueDuplicateFilter.hash(macAddress, receivedData);
+        if(kind != BlueFrameReader.Kind.HEADER && duplicates.contains(key, now)){
+            // a copy of the package, but the acknowledgements inside can be new
+            if(kind == BlueFrameReader.Kind.SINGLE){
+                processAcksCarried(frame);
+            }
+            return;
+        }
 
-        // is this a single command?
-        if(receivedData.startsWith(">")){
-            processSingleCommandReceived(macAddress, receivedData, context);
+        // a whole package on one frame, no need to keep it anywhere
+        if(kind == BlueFrameReader.Kind.SINGLE){
+            duplicates.add(key, now);
+            processSingleFrameReceived(macAddress, frame, context);
             return;
         }
 
-        String[] data = receivedData.split(":");
-        String UID = data[0].substring(0, 2);
-        HashMap<String, BluePackage> packagesBeingReceived =
+        String UID = frame.getId();
+        BlueReassemblyTable packagesBeingReceived =
                 BlueQueueReceiving.getInstance(context).packagesReceivedRecently;
         // with a valid device, is there already a write request?
-        BluePackage packageBeingReceived;
-        // does it already exist?
-        if(packagesBeingReceived.containsKey(UID)){
-            packageBeingReceived = packagesBeingReceived.get(UID);
-        }else{
-            // not yet, then let's create a new one
+        BluePackage packageBeingReceived = packagesBeingReceived.get(macAddress, UID);
+
+        if(kind == BlueFrameReader.Kind.HEADER){
+            BluePackage previous = packageBeingReceived;
             packageBeingReceived = BluePackage.createReceiver(receivedData);
+            // does it already exist? Then this is the package being sent again
+            if(previous != null){
+                // unless it was complete and the id now names another package
+                if(previous.allParcelsReceivedAndValid() == false
+                        || packageBeingReceived.isValidHeader() == false
+                        || (previous.getChecksum() == packageBeingReceived.getChecksum()
+                        && previous.getMessageParcelsTotal() == packageBeingReceived.getMessageParcelsTotal())){
+                    return;
+                }
+                duplicates.forget(BlueReassemblyTable.key(macAddress, UID));
+                BlueRetransmission.getInstance(context).onComplete(macAddress, UID);
+            }
+            // only headers are logged, one for each package
+            Log.i(TAG, "Received header from " + macAddress + ": " + BlueFrame.decode(receivedData));
             // first message should be a header, is it valid?
             if(packageBeingReceived.isValidHeader()){
-                packagesBeingReceived.put(UID, packageBeingReceived);
-                // no need to continue, first message is the header
-                return;
+                packagesBeingReceived.put(macAddress, packageBeingReceived, now);
+                BlueRetransmission.getInstance(context).onProgress(macAddress, packageBeingReceived, now);
             }else{
-                Log.e(TAG, "Invalid header received for write operation: " + receivedData);
-                LostAndFound.decodeLostPackage(receivedData, macAddress, context);
-                return;
+                Log.e(TAG, "Invalid header received for write operation: " + UID);
             }
+            // no need to continue, first message is the header
+            return;
         }
-        // at this point our package should NOT be null
+
+        // a data parcel arrived without the header before
         if(packageBeingReceived == null){
-            Log.e(TAG, "Null package received");
+            Log.e(TAG, "Parcel received without a header: " + UID + " " + frame.getIndex());
+            LostAndFound.decodeLostPackage(frame, macAddress, context);
             return;
         }
 
@@ -135,7 +184,17 @@ public class BlueReceiver {
         }
 
         // next messages should be an increment
-        packageBeingReceived.receiveParcel(receivedData);
+        int timesDiscarded = packageBeingReceived.getTimesDiscarded();
+        packageBeingReceived.receiveParcel(frame);
+        long group = BlueReassemblyTable.key(macAddress, UID);
+        if(packageBeingReceived.getTimesDiscarded() == timesDiscarded){
+            duplicates.add(key, group, now);
+        }else{
+            // the package arrived damaged, let the same parcels arrive again
+            duplicates.forget(group);
+        }
+        packagesBeingReceived.touch(macAddress, UID, now);
+        BlueRetransmission.getInstance(context).onProgress(macAddress, packageBeingReceived, now);
 
         // when we detect a missing parcel, try to get it first
         // it will retry to ask for the package again
@@ -145,39 +204,46 @@ public class BlueReceiver {
 
         // when the message is complete, process the command inside
         if(packageBeingReceived.allParcelsReceivedAndValid()){
-            processReceivedRequest(macAddress, packageBeingReceived, context);
+            processReceivedRequest(macAddress, packageBeingReceived.getCommand(),
+                    packageBeingReceived.getDeviceId(), packageBeingReceived.getData(), context);
             Log.i(TAG, "Full data received from " + macAddress
                     + " -> " + packageBeingReceived.getData());
-            // remove this message from the queue
-            // don't remove yet to avoid replay actions
-            //packagesBeingReceived.remove(UID);
+            // don't remove yet to avoid replay actions, it expires later
+            packagesBeingReceived.complete(macAddress, UID, now);
+            BlueRetransmission.getInstance(context).onComplete(macAddress, UID);
 
             // trigger an event that a message was received
-            EventControl.startEvent(EventType.BLUETOOTH_PACKAGE_RECEIVED, packageBeingReceived);
+            EventControl.startEvent(EventType.BLUETOOTH_PACKAGE_RECEIVED,
+                    packageBeingReceived.getId(), packageBeingReceived.getDeviceId());
         }
 
     }
 
     /**
-     * Reduce CPU effort when the same parcel was delivered recently before
-     * from the same MAC address
+     * A small package arrived whole on a single frame
+     * @param macAddress MAC address of the device which sent the message
+     * @param frame reader positioned on the frame
+     * @param context context of the application
      */
-    private boolean wasSameParcelReceivedRecently(String macAddress, String receivedData, Context context) {
-        // go through all the packages
-        for(BluePackage packageReceivedEarlier : BlueQueueReceiving.getInstance(context).packagesReceivedRecently.values()){
-            // check each of the received parcels
-            for(String data : packageReceivedEarlier.getDataParcels()){
-                // no data on the expected parcel? don't care
-                if(data == null){
-                    continue;
-                }
-                // there is a match, let's inform about this
-                if(data.equalsIgnoreCase(receivedData)){
-                    return true;
-                }
-            }
+    private void processSingleFrameReceived(String macAddress, BlueFrameReader frame, Context context) {
+        String deviceId = frame.getDeviceId();
+        String text = frame.getText();
+        Log.i(TAG, "Single frame received from " + macAddress + ": "
+                + frame.getId() + ":" + frame.getDataType() + ":" + deviceId);
+        processAcksCarried(frame);
+        processReceivedRequest(macAddress, frame.getDataType(), deviceId, text, context);
+        EventControl.startEvent(EventType.BLUETOOTH_PACKAGE_RECEIVED, frame.getId(), deviceId);
+    }
+
+    /**
+     * Packages of ours confirmed by the other device on a single frame
+     * @param frame reader positioned on the single frame
+     */
+    private void processAcksCarried(BlueFrameReader frame) {
+        List<String> packageIds = frame.getAcks();
+        if(packageIds.isEmpty() == false){
+            EventControl.startEvent(EventType.BLUETOOTH_ACKNOWLEDGE_RECEIVED, frame.getDeviceId(), packageIds);
         }
-        return false;
     }
 
     /**
@@ -192,9 +258,19 @@ public class BlueReceiver {
         // this means: broadcast message with identification XY requests parcel 1
         // >B:REPEAT:TZ
         // this means to repeat the TZ package again
+        // >B:NACK:TZ:3:05
+        // this means to repeat the parcels 3 and 5 of the TZ package
         if(receivedData.startsWith(oneLineCommandGapBroadcast)){
+            // parcels were lost on the way, slow down towards this device
+            BlueRateController.getInstance().onParcelRequested(macAddress);
             String[] data = receivedData.split(":");
-            String action = data[1]; // e.g. XY001 or REPEAT
+            String action = data[1]; // e.g. XY001, REPEAT or NACK
+            // is this a request for specific parcels?
+            if(action.equals(gapNACK)){
+                resendParcels(macAddress,
+                        receivedData.substring(oneLineCommandGapBroadcast.length()), context);
+                return;
+            }
             // is this a repeat request?
             if(action.equals(gapREPEAT)){
                 String packageId = data[2];
@@ -203,6 +279,7 @@ public class BlueReceiver {
                 // there is a package that we can send again
                 if(packageToResend != null){
                     Log.i(TAG, "Gap data: repeating package: " + packageId);
+                    BlueQueueSending.getInstance(context).markSentAgain(macAddress, packageId);
                     sendPackageToDevice(macAddress, packageToResend, context);
                     return;
                 }
@@ -213,7 +290,7 @@ public class BlueReceiver {
             Log.i(TAG, "Gap data: sending again id: "
                     + id + " and parcel " + parcelNumber);
             // send back the parcel to the other device
-            HashMap<String, BluePackage> packagesSentBefore = BlueQueueSending.getInstance(context).packagesToSend;
+            BluePackageCache packagesSentBefore = BlueQueueSending.getInstance(context).packagesToSend;
             BluePackage packageToSendAgain = packagesSentBefore.get(id);
             if(packageToSendAgain == null){
                 Log.e(TAG, "GapData: No write action found for id: " + id);
@@ -226,9 +303,14 @@ public class BlueReceiver {
                 Log.e(TAG, "GapData: Invalid parcel number received: " + parcelNumber);
                 return;
             }
-            String textToSendAgain = packageToSendAgain.getSpecificParcel(value);
-            Log.i(TAG, "GapData: Sending parcel: " + textToSendAgain);
-            Bluecomm.getInstance(context).writeData(macAddress, textToSendAgain);
+            byte[] parcelToSendAgain = packageToSendAgain.getParcelByIndex(parcelNumber);
+            if(parcelToSendAgain == null){
+                Log.e(TAG, "GapData: Parcel not available: " + value);
+                return;
+            }
+            Log.i(TAG, "GapData: Sending parcel: " + BlueFrame.decode(parcelToSendAgain));
+            BlueQueueSending.getInstance(context).markSentAgain(macAddress, id);
+            Bluecomm.getInstance(context).writeData(macAddress, parcelToSendAgain);
         }
 
         // received a message like >PING:713321
@@ -247,34 +329,91 @@ public class BlueReceiver {
             return;
         }
 
-        // received a message like >ACK:QB
-        // this is an update to the MAC address of that device Id
+        // received a message like >ACK:2A1A78:3F4B:287
+        // the device 2A1A78 confirms the packages 3F and 4B,
+        // it held the first one for 287 ms before writing this
         if(receivedData.startsWith(oneLineAcknowledgement)){
-            EventControl.startEvent(EventType.BLUETOOTH_ACKNOWLEDGE_RECEIVED, receivedData);
+            String[] data = receivedData.split(":");
+            if(data.length != 4 || data[2].isEmpty() || data[2].length() % 2 != 0){
+                Log.e(TAG, "Invalid ack received: " + receivedData);
+                return;
+            }
+            long timeHeld;
+            try{
+                timeHeld = Long.parseLong(data[3]);
+            }catch(NumberFormatException e){
+                Log.e(TAG, "Invalid ack received: " + receivedData);
+                return;
+            }
+            ArrayList<String> packageIds = new ArrayList<>();
+            for(int i = 0; i < data[2].length(); i += 2){
+                packageIds.add(data[2].substring(i, i + 2));
+            }
+            EventControl.startEvent(EventType.BLUETOOTH_ACKNOWLEDGE_RECEIVED, data[1], packageIds, timeHeld);
             return;
         }
 
 
+        // received >BUSY, the device dropped what we wrote
+        if(receivedData.startsWith(oneLineCommandBusy)){
+            BlueRateController.getInstance().onBusy(macAddress);
+            return;
+        }
+
         // single command is not yet supported
         Log.i(TAG, "Single command received and ignored: " + receivedData);
 
     }
 
+    /**
+     * Sends again only the parcels that the other device reported as lost
+     * @param macAddress MAC address of the device asking for the parcels
+     * @param request e.g. NACK:TZ:3:05
+     * @param context context of the application
+     */
+    private void resendParcels(String macAddress, String request, Context context) {
+        BlueNack nack = BlueNack.decode(request);
+        if(nack == null){
+            Log.e(TAG, "GapData: Invalid request received: " + request);
+            return;
+        }
+        BluePackage packageToSendAgain =
+                BlueQueueSending.getInstance(context).packagesToSend.get(nack.getId());
+        if(packageToSendAgain == null){
+            Log.e(TAG, "GapData: No write action found for id: " + nack.getId());
+            return;
+        }
+        Log.i(TAG, "GapData: Sending again parcels " + nack.getParcels()
+                + " of package " + nack.getId());
+        BlueQueueSending.getInstance(context).markSentAgain(macAddress, nack.getId());
+        BitSet parcels = nack.getParcels();
+        for(int index = parcels.nextSetBit(0); index >= 0; index = parcels.nextSetBit(index + 1)){
+            byte[] parcelToSendAgain = packageToSendAgain.getParcelByIndex(index);
+            if(parcelToSendAgain == null){
+                Log.e(TAG, "GapData: Parcel not available: " + index);
+                continue;
+            }
+            Bluecomm.getInstance(context).writeData(macAddress, parcelToSendAgain);
+        }
+    }
+
     /**
      * Process all commands arriving to the
      */
     private void processReceivedRequest(
             String macAddress,
-            BluePackage packageReceived,
+            DataType command,
+            String deviceId,
+            String data,
             Context context) {
         //Log.i(TAG, "Received command: " + received);
-        switch (packageReceived.getCommand()) {
+        switch (command) {
             case C -> {
-                saveDirectChatMessage(macAddress, packageReceived, context);
+                saveDirectChatMessage(macAddress, deviceId, data, context);
                 return;
             }
             case B -> {
-                saveBroadCastMessage(macAddress, packageReceived, context);
+                saveBroadCastMessage(macAddress, deviceId, data, context);
                 return;
             }
             default -> {
@@ -285,18 +424,17 @@ public class BlueReceiver {
     /**
      * Received a direct chat message from the other device
      * @param macAddress MAC address of the device sending this message
-     * @param packageReceived message received
+     * @param deviceId id of the device sending this message
+     * @param data message received
      * @param context context of the application
      */
-    private void saveDirectChatMessage(String macAddress, BluePackage packageReceived, Context context) {
-        Log.i(TAG, "Direct message received: " + packageReceived.getData());
-        // get the device Id
-        String deviceId = packageReceived.getDeviceId();
+    private void saveDirectChatMessage(String macAddress, String deviceId, String data, Context context) {
+        Log.i(TAG, "Direct message received: " + data);
         // get the respective database
         ChatMessages deviceMessages =
                 ChatDatabaseWithDevice.getInstance(context).getMessages(deviceId);
         // create a message
-        ChatMessage message = new ChatMessage(deviceId, packageReceived.getData());
+        ChatMessage message = new ChatMessage(deviceId, data);
         // add it to the database
         deviceMessages.add(message);
         // save it to disk
@@ -310,15 +448,14 @@ public class BlueReceiver {
      */
     private void saveBroadCastMessage(
             String macAddress,
-            BluePackage packageReceived,
+            String deviceId,
+            String data,
             Context context) {
 
-        String messageText = packageReceived.getData();
-        String deviceId = packageReceived.getDeviceId();
+        String messageText = data;
 
         // handle the case of bio messages
         // e.g.: /bio:{"color":"Pink","id":"2A1A78","nick":"Eva"} from 2A1A78
-        String data = packageReceived.getData();
         if(data.startsWith(BlueCommands.tagBio)){
             // save this to disk
             BioDatabase.save(deviceId, BioProfile.fromJson(
@@ -0,0 +1,195 @@
+package offgrid.geogram.bluetooth;
+
+import android.content.Context;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import offgrid.geogram.bluetooth.broadcast.LostAndFound;
+import offgrid.geogram.bluetooth.eddystone.DeviceFinder;
+import offgrid.geogram.bluetooth.other.comms.BluePackage;
+import offgrid.geogram.core.Log;
+import offgrid.geogram.devices.DeviceReachable;
+
+/**
+ * Notices when a package being received stops moving and asks the
+ * sender for what is missing.
+ * <p>
+ * It solves transfers as seen below, where parcels are being sent
+ * and then suddenly stop:
+ * <pre>
+ * 2025-01-07_20:33:30 [BlueReceiver] Received data from 57:C0:20:C7:0E:80: VY:007:HCNA:B:2A1A78
+ * 2025-01-07_20:33:32 [BlueReceiver] Received data from 57:C0:20:C7:0E:80: VY000:is this able t
+ * 2025-01-07_20:33:33 [BlueReceiver] Received data from 57:C0:20:C7:0E:80: VY001:o adjust for l
+ * 2025-01-07_20:33:35 [BlueReceiver] Received data from 57:C0:20:C7:0E:80: VY002:arger composit
+ * 2025-01-07_20:33:36 [BlueReceiver] Received data from 57:C0:20:C7:0E:80: VY003:ions of texts?
+ * 2025-01-07_20:33:38 [BlueReceiver] Received data from 57:C0:20:C7:0E:80: VY004: hmm.. it seem
+ * 2025-01-07_20:33:39 [BlueReceiver] Received data from 57:C0:20:C7:0E:80: VY005:s that it does
+ * </pre>
+ * Each package has one timer on the {@link BlueTimerWheel}, waiting
+ * the time the sender usually takes (see {@link BlueRttEstimator}).
+ * When it fires without news the missing parcels are asked again and
+ * the wait doubles on each request, until the sender answers or the
+ * package is given up.
+ */
+public class BlueRetransmission {
+
+    private static final String TAG = "BlueRetransmission";
+
+    public static final long
+            timeToQuitAskingForRepeat = 3 * 60 * 1000;
+
+    // the wait doubles up to 2^6 times the usual time
+    public static final int backoffMaximum = 6;
+
+    private static BlueRetransmission instance = null;
+    private final Context context;
+
+    private class Transfer {
+        final long key;
+        final String macAddress;
+        final BluePackage item;
+        volatile long timeLastProgress;
+        // parcels arriving after a request can be answers to it, not a measure of the link
+        volatile boolean wasRequested = false;
+        int backoff = 0;
+        BlueTimerWheel.Timeout timeout = null;
+
+        Transfer(long key, String macAddress, BluePackage item, long now) {
+            this.key = key;
+            this.macAddress = macAddress;
+            this.item = item;
+            this.timeLastProgress = now;
+        }
+    }
+
+    // <MAC address and package id, transfer>
+    private final ConcurrentHashMap<Long, Transfer> transfers = new ConcurrentHashMap<>();
+
+    private BlueRetransmission(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    public static synchronized BlueRetransmission getInstance(Context context) {
+        if (instance == null) {
+            instance = new BlueRetransmission(context);
+        }
+        return instance;
+    }
+
+    /**
+     * The header or a parcel of a package arrived, the timer starts
+     * again from the usual time.
+     */
+    public void onProgress(String macAddress, BluePackage item, long now) {
+        long key = BlueReassemblyTable.key(macAddress, item.getId());
+        Transfer transfer = transfers.get(key);
+        if (transfer == null || transfer.item != item) {
+            Transfer created = new Transfer(key, macAddress, item, now);
+            Transfer previous = transfers.put(key, created);
+            if (previous != null) {
+                cancel(previous);
+            }
+            schedule(created, now + BlueRttEstimator.getInstance().getTimeout(macAddress));
+            return;
+        }
+        if (transfer.wasRequested == false) {
+            BlueRttEstimator.getInstance().addSample(macAddress, now - transfer.timeLastProgress);
+        }
+        // the timer is not moved, it checks this time when it fires
+        transfer.timeLastProgress = now;
+        synchronized (this) {
+            transfer.wasRequested = false;
+            transfer.backoff = 0;
+        }
+    }
+
+    /**
+     * The package is complete, nothing else to ask.
+     */
+    public void onComplete(String macAddress, String packageId) {
+        Transfer transfer = transfers.remove(BlueReassemblyTable.key(macAddress, packageId));
+        if (transfer != null) {
+            cancel(transfer);
+        }
+    }
+
+    /**
+     * Number of packages being watched.
+     */
+    public int size() {
+        return transfers.size();
+    }
+
+    public void clear() {
+        for (Transfer transfer : transfers.values()) {
+            cancel(transfer);
+        }
+        transfers.clear();
+    }
+
+    private synchronized void cancel(Transfer transfer) {
+        if (transfer.timeout != null) {
+            transfer.timeout.cancel();
+        }
+    }
+
+    private synchronized void schedule(Transfer transfer, long deadline) {
+        if (transfer.timeout != null) {
+            transfer.timeout.cancel();
+        }
+        transfer.timeout = BlueTimerWheel.getInstance().schedule(() -> onTimeout(transfer), deadline);
+    }
+
+    /**
+     * Runs on the thread of the wheel, when a package had time
+     * to receive another parcel.
+     */
+    private void onTimeout(Transfer transfer) {
+        if (transfers.get(transfer.key) != transfer) {
+            return;
+        }
+        // complete, or forgotten by the table to save memory
+        if (transfer.item.allParcelsReceivedAndValid()
+                || BlueQueueReceiving.getInstance(context).packagesReceivedRecently
+                .get(transfer.macAddress, transfer.item.getId()) != transfer.item) {
+            transfers.remove(transfer.key, transfer);
+            return;
+        }
+        long now = BlueTimerWheel.getInstance().getTime();
+        long idle = now - transfer.timeLastProgress;
+        if (idle > timeToQuitAskingForRepeat) {
+            transfers.remove(transfer.key, transfer);
+            Log.i(TAG, "Giving up on package " + transfer.item.getId()
+                    + " from " + transfer.macAddress);
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            wait = BlueRttEstimator.getInstance().getTimeout(transfer.macAddress) << transfer.backoff;
+            if (transfer.wasRequested == false && idle < wait) {
+                // parcels arrived meanwhile, wait again from the last one
+                schedule(transfer, transfer.timeLastProgress + wait);
+                return;
+            }
+            transfer.wasRequested = true;
+            transfer.backoff = Math.min(transfer.backoff + 1, backoffMaximum);
+            wait = BlueRttEstimator.getInstance().getTimeout(transfer.macAddress) << transfer.backoff;
+            schedule(transfer, now + wait);
+        }
+
+        // get the most up-to-date MAC address for the device
+        String macAddress = transfer.macAddress;
+        DeviceReachable device = DeviceFinder.getInstance(context)
+                .getDeviceMap().get(transfer.item.getDeviceId());
+        if (device != null && device.getMacAddress() != null) {
+            macAddress = device.getMacAddress();
+        }
+        Log.i(TAG, "Package " + transfer.item.getId() + " stopped for " + idle
+                + " ms, asking " + macAddress + " again");
+        try {
+            LostAndFound.askToResendMissing(macAddress, transfer.item, context);
+        } catch (Exception e) {
+            Log.e(TAG, "Exception happened: " + e.getMessage());
+        }
+    }
+}
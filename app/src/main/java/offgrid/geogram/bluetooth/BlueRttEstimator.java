@@ -0,0 +1,98 @@
+package offgrid.geogram.bluetooth;
+
+import java.util.HashMap;
+
+/**
+ * Learns how long each device takes to answer, to know when a
+ * transfer has stopped instead of guessing a fixed time.
+ * <p>
+ * Every sample moves a smoothed average of the time (SRTT) and of
+ * its variation (RTTVAR), the same way TCP does (RFC 6298). The time
+ * to wait before asking again is SRTT plus four times RTTVAR, so a
+ * steady link is watched closely and a noisy one gets some room.
+ * <p>
+ * Samples come from the time between the header and the parcels of a
+ * package being received, and between the last parcel of a package
+ * sent and its acknowledgement.
+ */
+public class BlueRttEstimator {
+
+    // weights of each new sample on the averages
+    public static final double
+            rttWeight = 1.0 / 8,
+            rttVarianceWeight = 1.0 / 4;
+
+    public static final long
+            timeoutInitial = 1000,      // before any sample of the device
+            timeoutMinimum = 300,       // below this the radio itself is busy
+            timeoutMaximum = 10 * 1000; // longer than this the link is gone anyway
+
+    private static BlueRttEstimator instance = null;
+
+    private static class Estimate {
+        double srtt;
+        double rttvar;
+        long timeout;
+    }
+
+    // <MAC address, estimate>
+    private final HashMap<String, Estimate> estimates = new HashMap<>();
+
+    public BlueRttEstimator() {
+    }
+
+    public static synchronized BlueRttEstimator getInstance() {
+        if (instance == null) {
+            instance = new BlueRttEstimator();
+        }
+        return instance;
+    }
+
+    /**
+     * Adds one measurement of the time a device took to answer.
+     *
+     * @param macAddress the device
+     * @param rtt        milliseconds
+     */
+    public synchronized void addSample(String macAddress, long rtt) {
+        if (rtt < 0) {
+            return;
+        }
+        Estimate estimate = estimates.get(macAddress);
+        if (estimate == null) {
+            estimate = new Estimate();
+            estimate.srtt = rtt;
+            estimate.rttvar = rtt / 2.0;
+            estimates.put(macAddress, estimate);
+        } else {
+            estimate.rttvar = (1 - rttVarianceWeight) * estimate.rttvar
+                    + rttVarianceWeight * Math.abs(estimate.srtt - rtt);
+            estimate.srtt = (1 - rttWeight) * estimate.srtt + rttWeight * rtt;
+        }
+        long timeout = Math.round(estimate.srtt + Math.max(
+                BlueTimerWheel.tickDefault, 4 * estimate.rttvar));
+        estimate.timeout = Math.max(timeoutMinimum, Math.min(timeoutMaximum, timeout));
+    }
+
+    /**
+     * Time without news from a device after which something was lost.
+     *
+     * @return milliseconds
+     */
+    public synchronized long getTimeout(String macAddress) {
+        Estimate estimate = estimates.get(macAddress);
+        return estimate == null ? timeoutInitial : estimate.timeout;
+    }
+
+    /**
+     * Smoothed time the device takes to answer, or -1 without samples.
+     */
+    public synchronized long getSmoothedRtt(String macAddress) {
+        Estimate estimate = estimates.get(macAddress);
+        return estimate == null ? -1 : Math.round(estimate.srtt);
+    }
+
+    public synchronized void clear() {
+        estimates.clear();
+    }
+}
@@ -0,0 +1,178 @@
+package offgrid.geogram.bluetooth;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import offgrid.geogram.core.Log;
+
+/**
+ * Hashed timing wheel for the many short timers of the transfers,
+ * e.g. to forget packages that are no longer moving.
+ * Scheduling and cancelling cost the same no matter how many timers
+ * exist, and all of them fire from one thread, away from the UI.
+ * <p>
+ * Time is split in ticks and each tick goes to a slot of the wheel.
+ * Timers further away than one turn of the wheel wait on their slot
+ * until the wheel comes around to their tick.
+ */
+public class BlueTimerWheel {
+
+    private static final String TAG = "BlueTimerWheel";
+
+    // shared by the bluetooth classes, 100 ms precision and a turn of 51.2 s
+    public static final long tickDefault = 100;
+    public static final int slotsDefault = 512;
+
+    private static BlueTimerWheel instance = null;
+
+    /**
+     * A task waiting on the wheel.
+     */
+    public static class Timeout {
+        private final Runnable task;
+        private final long tick;
+        private volatile boolean isCancelled = false;
+
+        private Timeout(Runnable task, long tick) {
+            this.task = task;
+            this.tick = tick;
+        }
+
+        /**
+         * The task will not run, the slot is cleaned when the wheel passes by.
+         */
+        public void cancel() {
+            isCancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return isCancelled;
+        }
+    }
+
+    private final long tickDuration;
+    private final ArrayDeque<Timeout>[] slots;
+    private long tickLast;
+    private volatile long timeNow;
+    private int size = 0;
+    private ScheduledExecutorService scheduler = null;
+
+    /**
+     * Creates a wheel that only moves when {@link #expire(long)} is called,
+     * use {@link #start()} to move it with the clock.
+     *
+     * @param tickDuration milliseconds of each tick
+     * @param slots        number of ticks on one turn of the wheel
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public BlueTimerWheel(long tickDuration, int slots) {
+        this.tickDuration = tickDuration;
+        this.slots = new ArrayDeque[slots];
+        for (int i = 0; i < slots; i++) {
+            this.slots[i] = new ArrayDeque<>();
+        }
+        this.timeNow = System.currentTimeMillis();
+        this.tickLast = timeNow / tickDuration;
+    }
+
+    /**
+     * Provides the wheel shared by the bluetooth classes, already moving.
+     */
+    public static synchronized BlueTimerWheel getInstance() {
+        if (instance == null) {
+            instance = new BlueTimerWheel(tickDefault, slotsDefault);
+            instance.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Moves the wheel with the clock on its own thread.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> expire(System.currentTimeMillis()),
+                tickDuration, tickDuration, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a task at a given moment, or on the next tick when it already passed.
+     *
+     * @param task     what to run, keep it short since all timers share a thread
+     * @param deadline time in milliseconds, as given by System.currentTimeMillis()
+     * @return the timeout, which can be cancelled
+     */
+    public synchronized Timeout schedule(Runnable task, long deadline) {
+        long tick = Math.max(deadline / tickDuration, tickLast + 1);
+        Timeout timeout = new Timeout(task, tick);
+        slots[(int) (tick % slots.length)].add(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Runs the tasks whose moment has arrived.
+     *
+     * @param now current time in milliseconds
+     */
+    public void expire(long now) {
+        ArrayList<Timeout> due = new ArrayList<>();
+        synchronized (this) {
+            long tickNow = now / tickDuration;
+            if (tickNow <= tickLast) {
+                return;
+            }
+            // after a long pause there is no need to visit a slot twice
+            long ticks = Math.min(tickNow - tickLast, slots.length);
+            for (long tick = tickNow - ticks + 1; tick <= tickNow; tick++) {
+                Iterator<Timeout> iterator = slots[(int) (tick % slots.length)].iterator();
+                while (iterator.hasNext()) {
+                    Timeout timeout = iterator.next();
+                    if (timeout.isCancelled) {
+                        iterator.remove();
+                        size--;
+                    } else if (timeout.tick <= tickNow) {
+                        iterator.remove();
+                        size--;
+                        due.add(timeout);
+                    }
+                }
+            }
+            tickLast = tickNow;
+            timeNow = now;
+        }
+        for (Timeout timeout : due) {
+            try {
+                timeout.task.run();
+            } catch (Exception e) {
+                Log.e(TAG, "Exception on timer: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Time of the latest tick, tasks use it instead of the clock
+     * so that they see the same time that made them run.
+     */
+    public long getTime() {
+        return timeNow;
+    }
+
+    /**
+     * Number of timers on the wheel, including cancelled ones not yet cleaned.
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
@@ -6,23 +6,21 @@ import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Build;
-import android.os.Handler;
-import android.os.Looper;
 
 import androidx.core.app.ActivityCompat;
 
-import java.util.UUID;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
 
+import offgrid.geogram.bluetooth.other.comms.BlueFrame;
 import offgrid.geogram.bluetooth.other.comms.BlueQueueParcel;
 import offgrid.geogram.bluetooth.other.comms.DataCallbackTemplate;
-import offgrid.geogram.bluetooth.other.comms.Mutex;
 import offgrid.geogram.core.Log;
+import offgrid.geogram.wifi.comm.DeliveryPriority;
 
 public class Bluecomm {
 
@@ -31,19 +29,22 @@ public class Bluecomm {
     private static Bluecomm instance;
 
     private final Context context;
-    private BluetoothGatt bluetoothGatt;
-
-    // UUIDs for service and characteristic
-    private static final UUID SERVICE_UUID = BluetoothCentral.UUID_SERVICE_WALKIETALKIE;
-    private static final UUID CHARACTERISTIC_UUID = BluetoothCentral.UUID_CHARACTERISTIC_GENERAL;
 
     public static final int
-            delayDiscoverServices = 1000,
             timeBetweenChecks = 1000,
             timeBetweenMessages = 1500,
-            maxSizeOfMessages = 14,
+            maxSizeOfFrame = 20, // default ATT MTU (23) minus the 3 bytes of the write header
             packageTimeToBeActive = 3000;
 
+    public static final int
+            mtuDefault = 23,            // ATT MTU before negotiation
+            mtuRequested = 517,         // largest ATT MTU supported by Android
+            mtuWriteHeader = 3,         // opcode + attribute handle
+            maxSizeOfAttribute = 512;   // longest value accepted for a characteristic
+
+    // MTU negotiated with each device, <MAC address, MTU>
+    private final ConcurrentHashMap<String, Integer> mtuNegotiated = new ConcurrentHashMap<>();
+
     private Bluecomm(Context context) {
         this.context = context.getApplicationContext();
         // start the queues when not started already
@@ -67,7 +68,6 @@ public class Bluecomm {
      * @param macAddress The MAC address of the device to connect to.
      */
     public synchronized void getDataRead(String macAddress, DataCallbackTemplate callback) {
-        BluetoothGatt localGatt = null;
         try {
             if (!checkPermissions()) {
                 callback.onDataError("Missing required permissions.");
@@ -86,89 +86,10 @@ public class Bluecomm {
                 return;
             }
 
-            Mutex.getInstance().waitUntilUnlocked();
-
-            localGatt = device.connectGatt(context, false, new BluetoothGattCallback() {
-                @Override
-                public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-                    super.onConnectionStateChange(gatt, status, newState);
-                    if (newState == BluetoothGatt.STATE_CONNECTED) {
-                        Log.i(TAG, "Connected to GATT server.");
-                        new Handler(Looper.getMainLooper()).postDelayed(() -> {
-                            Mutex.getInstance().lock();
-                            try {
-                                gatt.discoverServices();
-                            } catch (Exception e) {
-                                Log.e(TAG, "Exception during service discovery: " + e.getMessage());
-                                closeGatt(gatt);
-                                callback.onDataError("Service discovery failed: " + e.getMessage());
-                            } finally {
-                                Mutex.getInstance().unlock();
-                            }
-                        }, 1000);
-                    } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
-                        Log.i(TAG, "Disconnected from GATT server.");
-                        closeGatt(gatt);
-                    }
-                }
-
-                @Override
-                public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-                    super.onServicesDiscovered(gatt, status);
-                    if (status == BluetoothGatt.GATT_SUCCESS) {
-                        BluetoothGattService service = gatt.getService(SERVICE_UUID);
-                        if (service == null) {
-                            Log.i(TAG, "Service not found: " + SERVICE_UUID);
-                            callback.onDataError("Service not found.");
-                            closeGatt(gatt);
-                            return;
-                        }
-
-                        BluetoothGattCharacteristic characteristic = service.getCharacteristic(CHARACTERISTIC_UUID);
-                        if (characteristic == null) {
-                            Log.i(TAG, "Characteristic not found: " + CHARACTERISTIC_UUID);
-                            callback.onDataError("Characteristic not found.");
-                            closeGatt(gatt);
-                            return;
-                        }
-
-                        boolean success = gatt.readCharacteristic(characteristic);
-                        if (!success) {
-                            Log.i(TAG, "Failed to initiate characteristic read");
-                            callback.onDataError("Failed to initiate characteristic read");
-                            closeGatt(gatt);
-                        }
-                    } else {
-                        Log.i(TAG, "Failed to discover services. Status: " + status);
-                        callback.onDataError("Failed to discover services.");
-                        closeGatt(gatt);
-                    }
-                }
-
-                @Override
-                public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-                    super.onCharacteristicRead(gatt, characteristic, status);
-                    if (status == BluetoothGatt.GATT_SUCCESS) {
-                        String data = new String(characteristic.getValue());
-                        Log.i(TAG, "Characteristic read successfully: " + data);
-                        callback.onDataSuccess(data);
-                    } else {
-                        Log.i(TAG, "Failed to read characteristic. Status: " + status);
-                        callback.onDataError("Failed to read characteristic.");
-                    }
-                    closeGatt(gatt);
-                }
-            }, BluetoothDevice.TRANSPORT_LE);
-
-            bluetoothGatt = localGatt; // Only assign after successful connection
-        } catch (SecurityException e) {
-            Log.e(TAG, "SecurityException while connecting to device: " + e.getMessage());
-            callback.onDataError("Security exception occurred.");
-            closeGatt(localGatt);
+            BlueConnectionPool.getInstance(context).read(device, callback);
         } catch (Exception e) {
             Log.e(TAG, "Unexpected exception: " + e.getMessage());
             callback.onDataError("Unexpected error occurred.");
-            closeGatt(localGatt);
         }
     }
 
@@ -195,6 +116,31 @@ public class Bluecomm {
      * This is useful for cases like broadcasting messages to devices
      */
     public synchronized void writeData(String macAddress, String data) {
+        if (data == null) {
+            return;
+        }
+        writeData(macAddress, data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Just send a write event to a device without waiting for the reply.
+     * Used for the binary frames of a package, see BlueFrame
+     */
+    public synchronized void writeData(String macAddress, byte[] data) {
+        if (data == null) {
+            return;
+        }
+        // one-line commands (ACK, PING, gap requests) are control traffic
+        DeliveryPriority priority = BlueFrame.isFrame(data)
+                ? DeliveryPriority.NORMAL : DeliveryPriority.HIGH;
+        writeData(macAddress, data, priority);
+    }
+
+    /**
+     * Just send a write event to a device without waiting for the reply.
+     * Parcels with higher priority leave the queue first.
+     */
+    public synchronized void writeData(String macAddress, byte[] data, DeliveryPriority priority) {
         if (data == null) {
             return;
         }
@@ -202,19 +148,19 @@ public class Bluecomm {
         if (BlueQueueSending.getInstance(context).isAlreadyOnQueueToSend(data, macAddress)) {
             return;
         }
-        BlueQueueParcel item = new BlueQueueParcel(macAddress, data);
+        BlueQueueParcel item = new BlueQueueParcel(macAddress, data, priority);
         BlueQueueSending.getInstance(context).addQueueToSend(item);
     }
 
     /**
      * Writes data to the custom characteristic on a specified device without waiting for a response.
+     * The connection to the device is kept open on the BlueConnectionPool for the next writes.
      *
      * @param macAddress The MAC address of the device to connect to.
      * @param data       The data to write.
      * @param callback   Callback to handle success or failure of the write operation.
      */
-    public synchronized void writeData(String macAddress, String data, DataCallbackTemplate callback) {
-        BluetoothGatt localGatt = null;
+    public synchronized void writeData(String macAddress, byte[] data, DataCallbackTemplate callback) {
         try {
             if (data == null) {
                 Log.e(TAG, "Null data received for write operation to " + macAddress);
@@ -239,116 +185,66 @@ public class Bluecomm {
                 return;
             }
 
-            Mutex.getInstance().waitUntilUnlocked();
-
-            localGatt = device.connectGatt(context, false, new BluetoothGattCallback() {
-                @Override
-                public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-                    super.onConnectionStateChange(gatt, status, newState);
-                    if (newState == BluetoothGatt.STATE_CONNECTED) {
-                        Log.i(TAG, "Connected to GATT server.");
-                        new Handler(Looper.getMainLooper()).postDelayed(() -> {
-                            Mutex.getInstance().lock();
-                            try {
-                                gatt.discoverServices();
-                            } catch (Exception e) {
-                                Log.e(TAG, "Exception during service discovery: " + e.getMessage());
-                                closeGatt(gatt);
-                                callback.onDataError("Service discovery failed: " + e.getMessage());
-                            } finally {
-                                Mutex.getInstance().unlock();
-                            }
-                        }, delayDiscoverServices);
-                    } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
-                        Log.i(TAG, "Disconnected from GATT server.");
-                        closeGatt(gatt);
-                    }
-                }
-
-                @Override
-                public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-                    Mutex.getInstance().waitUntilUnlocked();
-                    super.onServicesDiscovered(gatt, status);
-                    if (status == BluetoothGatt.GATT_SUCCESS) {
-                        BluetoothGattService service = gatt.getService(SERVICE_UUID);
-                        if (service == null) {
-                            Log.i(TAG, "Service not found: " + SERVICE_UUID);
-                            callback.onDataError("Service not found.");
-                            closeGatt(gatt);
-                            return;
-                        }
-
-                        BluetoothGattCharacteristic characteristic = service.getCharacteristic(CHARACTERISTIC_UUID);
-                        if (characteristic == null) {
-                            Log.i(TAG, "Characteristic not found: " + CHARACTERISTIC_UUID);
-                            callback.onDataError("Characteristic not found.");
-                            closeGatt(gatt);
-                            return;
-                        }
-
-                        // Check if the characteristic supports write
-                        int properties = characteristic.getProperties();
-                        if ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE) == 0 &&
-                                (properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == 0) {
-                            Log.e(TAG, "Characteristic does not support write operations.");
-                            callback.onDataError("Characteristic does not support write operations.");
-                            closeGatt(gatt);
-                            return;
-                        }
-
-                        new Handler(Looper.getMainLooper()).postDelayed(() -> {
-                            try {
-                                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-                                    int result = gatt.writeCharacteristic(characteristic, data.getBytes(),
-                                            BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-
-                                    if (result != BluetoothGatt.GATT_SUCCESS) {
-                                        Log.e(TAG, "GATT write failed with status: " + result);
-                                        callback.onDataError("GATT write failed with status: " + result);
-                                    } else {
-                                        Log.i(TAG, "Write operation initiated successfully.");
-                                        callback.onDataSuccess("Write operation initiated.");
-                                    }
-                                } else {
-                                    characteristic.setValue(data.getBytes());
-                                    characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-                                    boolean success = gatt.writeCharacteristic(characteristic);
-                                    if (!success) {
-                                        Log.i(TAG, "Failed to initiate write operation.");
-                                        callback.onDataError("Failed to initiate write operation.");
-                                    } else {
-                                        Log.i(TAG, "Write operation initiated successfully.");
-                                        callback.onDataSuccess("Write operation initiated.");
-                                    }
-                                }
-                            } catch (Exception e) {
-                                Log.e(TAG, "Exception during write operation: " + e.getMessage());
-                                callback.onDataError("Exception during write operation: " + e.getMessage());
-                            } finally {
-                                closeGatt(gatt);
-                            }
-                        }, 300);
-                    } else {
-                        Log.i(TAG, "Failed to discover services. Status: " + status);
-                        callback.onDataError("Failed to discover services.");
-                        closeGatt(gatt);
-                    }
-                }
-            }, BluetoothDevice.TRANSPORT_LE);
-
-            bluetoothGatt = localGatt;
-        } catch (SecurityException e) {
-            Log.e(TAG, "SecurityException while connecting to device: " + e.getMessage());
-            callback.onDataError("Security exception occurred.");
-            closeGatt(localGatt);
+            BlueConnectionPool.getInstance(context).write(device, data, callback);
         } catch (Exception e) {
             Log.e(TAG, "Unexpected exception: " + e.getMessage());
             callback.onDataError("Unexpected error occurred.");
-            closeGatt(localGatt);
         }
     }
 
-    private void closeGatt(BluetoothGatt gatt) {
+    /**
+     * Checks if the MTU was already negotiated with a device.
+     */
+    public boolean hasMtu(String macAddress) {
+        return macAddress != null && mtuNegotiated.containsKey(macAddress);
+    }
+
+    /**
+     * Stores the MTU that was negotiated with a device.
+     *
+     * @param macAddress The MAC address of the device.
+     * @param mtu        The ATT MTU agreed for the connection.
+     */
+    public void setMtu(String macAddress, int mtu) {
+        if (macAddress == null || mtu < mtuDefault) {
+            return;
+        }
+        Integer previous = mtuNegotiated.put(macAddress, mtu);
+        if (previous == null || previous != mtu) {
+            Log.i(TAG, "MTU with " + macAddress + " is now " + mtu);
+        }
+    }
+
+    /**
+     * Gets the largest frame that can be written to a device in one go.
+     * Devices without a negotiated MTU use the default size.
+     *
+     * @param macAddress The MAC address of the device.
+     * @return The number of bytes available for each frame.
+     */
+    public int getMaxFrameSize(String macAddress) {
+        Integer mtu = macAddress == null ? null : mtuNegotiated.get(macAddress);
+        if (mtu == null) {
+            return maxSizeOfFrame;
+        }
+        return Math.min(mtu - mtuWriteHeader, maxSizeOfAttribute);
+    }
+
+    /**
+     * Gets the largest frame that all the given devices are able to receive.
+     *
+     * @param macAddresses The MAC addresses of the devices.
+     * @return The number of bytes available for each frame.
+     */
+    public int getMaxFrameSize(Collection<String> macAddresses) {
+        int result = maxSizeOfAttribute;
+        for (String macAddress : macAddresses) {
+            result = Math.min(result, getMaxFrameSize(macAddress));
+        }
+        return macAddresses.isEmpty() ? maxSizeOfFrame : result;
+    }
+
+    void closeGatt(BluetoothGatt gatt) {
         if (gatt == null) {
             Log.i(TAG, "BluetoothGatt is already null, skipping close operation.");
             return;
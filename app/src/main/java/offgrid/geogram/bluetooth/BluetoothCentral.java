@@ -16,7 +16,6 @@ import offgrid.geogram.bluetooth.watchdog.BluePing;
 import offgrid.geogram.bluetooth.other.old.BluetoothStateReceiver;
 import offgrid.geogram.bluetooth.watchdog.EventBluetoothAcknowledgementReceived;
 import offgrid.geogram.bluetooth.watchdog.EventBluetoothPackageReceived;
-import offgrid.geogram.bluetooth.watchdog.WatchDogMissingParcels;
 import offgrid.geogram.bluetooth.watchdog.WatchDogRestartGATT;
 import offgrid.geogram.core.Log;
 import offgrid.geogram.events.EventControl;
@@ -127,8 +126,7 @@ public class BluetoothCentral {
         // Start the ping service
         BluePing.getInstance(context).start();
 
-        // start the watchdog for lost parcels
-        WatchDogMissingParcels.getInstance().startLoop(context);
+        // lost parcels are asked again by BlueRetransmission as they happen
         WatchDogRestartGATT.getInstance().startLoop(context);
 
         // synchronize messages
@@ -157,8 +155,11 @@ public class BluetoothCentral {
         // Stop the ping service
         BluePing.getInstance(context).stop();
 
-        // Stop the watchdog for lost parcels
-        WatchDogMissingParcels.getInstance().stopLoop();
+        // Stop watching the packages being received
+        BlueRetransmission.getInstance(context).clear();
+
+        // Close the links that were kept open to other devices
+        BlueConnectionPool.getInstance(context).closeAll();
     }
 
     /**
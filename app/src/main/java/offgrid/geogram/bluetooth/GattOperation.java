@@ -0,0 +1,79 @@
+package offgrid.geogram.bluetooth;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One step made on a GATT connection, such as connecting,
+ * discovering the services or writing a parcel. Steps are
+ * executed one at a time by the GattOperationQueue and each
+ * one is finished by the respective GATT callback.
+ */
+public class GattOperation {
+
+    public enum Type {
+        CONNECT(10_000),
+        REQUEST_MTU(3_000),
+        DISCOVER_SERVICES(10_000),
+        WRITE(3_000),
+        READ(3_000);
+
+        // time to wait for the callback before giving up
+        private final long timeout;
+
+        Type(long timeout) {
+            this.timeout = timeout;
+        }
+
+        public long getTimeout() {
+            return timeout;
+        }
+    }
+
+    /**
+     * Starts the operation on the radio. Runs while the queue is
+     * locked, so it must return right away instead of waiting.
+     */
+    public interface Starter {
+        /**
+         * @return false when the operation could not be initiated
+         */
+        boolean start();
+    }
+
+    private final Type type;
+    private final Starter starter;
+    private final long timeout;
+    // completed with the value read, or the data written
+    private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+
+    public GattOperation(Type type, Starter starter) {
+        this(type, starter, type.getTimeout());
+    }
+
+    public GattOperation(Type type, Starter starter, long timeout) {
+        this.type = type;
+        this.starter = starter;
+        this.timeout = timeout;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Starter getStarter() {
+        return starter;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public CompletableFuture<byte[]> getFuture() {
+        return future;
+    }
+
+    @Override
+    public String toString() {
+        return type.name();
+    }
+}
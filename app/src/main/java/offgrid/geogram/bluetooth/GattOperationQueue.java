@@ -0,0 +1,195 @@
+package offgrid.geogram.bluetooth;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import offgrid.geogram.core.Log;
+
+/**
+ * Runs the GATT operations of one connection in sequence.
+ * Android only permits one pending operation per connection,
+ * so instead of waiting fixed delays between steps, the next
+ * operation starts as soon as the callback of the previous one
+ * arrives. Operations that get no callback fail after a timeout.
+ */
+public class GattOperationQueue {
+
+    private static final String TAG = "GattOperationQueue";
+
+    // shared by all the connections to watch the time of each operation
+    private static final ScheduledExecutorService timeouts =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private final String name;
+    private final ArrayDeque<GattOperation> operations = new ArrayDeque<>();
+    private GattOperation current = null;
+    private ScheduledFuture<?> currentTimeout = null;
+    private boolean isClosed = false;
+
+    /**
+     * @param name used on the logs, e.g. the MAC address of the device
+     */
+    public GattOperationQueue(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Places an operation on the queue, starting it right away when
+     * nothing else is running.
+     *
+     * @return the future completed when the operation is finished
+     */
+    public CompletableFuture<byte[]> enqueue(GattOperation operation) {
+        synchronized (this) {
+            if (isClosed) {
+                operation.getFuture().completeExceptionally(
+                        new IllegalStateException("Connection to " + name + " is closed"));
+                return operation.getFuture();
+            }
+            operations.add(operation);
+        }
+        next();
+        return operation.getFuture();
+    }
+
+    /**
+     * The callback for the running operation has arrived with success.
+     *
+     * @param type  the type of operation that was finished
+     * @param value the value that was read or written, can be null
+     */
+    public void complete(GattOperation.Type type, byte[] value) {
+        GattOperation operation = finishCurrent(type);
+        if (operation == null) {
+            return;
+        }
+        operation.getFuture().complete(value);
+        next();
+    }
+
+    /**
+     * The callback for the running operation has arrived with an error.
+     *
+     * @param type   the type of operation that failed
+     * @param reason description of the problem
+     */
+    public void fail(GattOperation.Type type, String reason) {
+        GattOperation operation = finishCurrent(type);
+        if (operation == null) {
+            return;
+        }
+        operation.getFuture().completeExceptionally(new IllegalStateException(reason));
+        next();
+    }
+
+    /**
+     * Fails the running and the pending operations, no others are accepted.
+     */
+    public void close(String reason) {
+        ArrayList<GattOperation> cancelled = new ArrayList<>();
+        synchronized (this) {
+            isClosed = true;
+            if (current != null) {
+                cancelled.add(current);
+                current = null;
+            }
+            cancelTimeout();
+            cancelled.addAll(operations);
+            operations.clear();
+        }
+        for (GattOperation operation : cancelled) {
+            operation.getFuture().completeExceptionally(new IllegalStateException(reason));
+        }
+    }
+
+    /**
+     * Checks if there is nothing running or waiting to run.
+     */
+    public synchronized boolean isEmpty() {
+        return current == null && operations.isEmpty();
+    }
+
+    /**
+     * Number of operations running or waiting to run.
+     */
+    public synchronized int size() {
+        return operations.size() + (current == null ? 0 : 1);
+    }
+
+    /**
+     * Clears the running operation when it matches the type finished.
+     */
+    private synchronized GattOperation finishCurrent(GattOperation.Type type) {
+        if (current == null || current.getType() != type) {
+            Log.i(TAG, "Unexpected " + type + " callback from " + name);
+            return null;
+        }
+        GattOperation operation = current;
+        current = null;
+        cancelTimeout();
+        return operation;
+    }
+
+    /**
+     * Starts the next operation when the connection is free.
+     */
+    private void next() {
+        ArrayList<GattOperation> failed = new ArrayList<>();
+        synchronized (this) {
+            while (current == null && !isClosed) {
+                GattOperation operation = operations.poll();
+                if (operation == null) {
+                    break;
+                }
+                boolean started;
+                try {
+                    started = operation.getStarter().start();
+                } catch (Exception e) {
+                    Log.e(TAG, "Exception starting " + operation + " on " + name + ": " + e.getMessage());
+                    started = false;
+                }
+                if (!started) {
+                    failed.add(operation);
+                    continue;
+                }
+                current = operation;
+                currentTimeout = timeouts.schedule(() -> onTimeout(operation),
+                        operation.getTimeout(), TimeUnit.MILLISECONDS);
+            }
+        }
+        for (GattOperation operation : failed) {
+            operation.getFuture().completeExceptionally(
+                    new IllegalStateException("Failed to start " + operation + " on " + name));
+        }
+    }
+
+    /**
+     * No callback arrived in time, give up on this operation.
+     */
+    private void onTimeout(GattOperation operation) {
+        synchronized (this) {
+            if (current != operation) {
+                return;
+            }
+            current = null;
+            currentTimeout = null;
+        }
+        Log.i(TAG, "Timeout on " + operation + " with " + name);
+        operation.getFuture().completeExceptionally(
+                new TimeoutException(operation + " timed out on " + name));
+        next();
+    }
+
+    private void cancelTimeout() {
+        if (currentTimeout != null) {
+            currentTimeout.cancel(false);
+            currentTimeout = null;
+        }
+    }
+}
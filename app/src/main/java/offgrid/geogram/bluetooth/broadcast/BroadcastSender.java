@@ -5,12 +5,15 @@ import static offgrid.geogram.bluetooth.other.comms.BlueCommands.oneLineCommandG
 import android.content.Context;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 import offgrid.geogram.bluetooth.BlueQueueSending;
+import offgrid.geogram.bluetooth.BlueRateController;
 import offgrid.geogram.bluetooth.eddystone.DeviceFinder;
 import offgrid.geogram.bluetooth.BluetoothCentral;
 import offgrid.geogram.bluetooth.other.comms.BlueCommands;
@@ -22,10 +25,14 @@ import offgrid.geogram.core.Log;
 import offgrid.geogram.database.BioProfile;
 import offgrid.geogram.settings.SettingsUser;
 import offgrid.geogram.devices.DeviceReachable;
+import offgrid.geogram.wifi.comm.DeliveryPriority;
 
 public class BroadcastSender {
     private static final String TAG_ID = "BroadcastSender";
 
+    // Single thread shared by all broadcasts, instead of one new thread each time
+    private static final ExecutorService dispatcher = Executors.newSingleThreadExecutor();
+
     // Listener for message updates
     private static WeakReference<MessageUpdateListener> messageUpdateListener;
 
@@ -46,7 +53,7 @@ public class BroadcastSender {
     }
 
     public static void broadcastMessageToAllEddystoneDevicesShort(String text, Context context) {
-        new Thread(() -> {
+        dispatcher.execute(() -> {
             try {
                 Collection<DeviceReachable> devices = DeviceFinder.getInstance(context).getDeviceMap().values();
                 for (DeviceReachable device : devices) {
@@ -57,11 +64,11 @@ public class BroadcastSender {
             } catch (Exception e) {
                 Log.e(TAG_ID, "Exception happened: " + e.getMessage());
             }
-        }).start();
+        });
     }
 
     public static void broadcastMessageToAllEddystoneDevices(BroadcastMessage messageToBroadcast, Context context) {
-        new Thread(() -> {
+        dispatcher.execute(() -> {
             try {
                 Collection<DeviceReachable> devices = DeviceFinder.getInstance(context).getDeviceMap().values();
                 if (devices.isEmpty()) {
@@ -69,19 +76,28 @@ public class BroadcastSender {
                     return;
                 }
 
+                // parcels need to fit on the smallest MTU among the devices
+                ArrayList<String> macAddresses = new ArrayList<>();
+                for (DeviceReachable device : devices) {
+                    macAddresses.add(device.getMacAddress());
+                }
+                int maxFrameSize = Bluecomm.getInstance(context).getMaxFrameSize(macAddresses);
+
                 String deviceId = Central.getInstance().getSettings().getIdDevice();
+                // parity parcels to cover the losses of the worst link
+                double lossRate = BlueRateController.getInstance().getLossRate(macAddresses);
                 BluePackage packageToSend = BluePackage.createSender(
-                        DataType.B, messageToBroadcast.getMessage(), deviceId
+                        DataType.B, messageToBroadcast.getMessage(), deviceId, maxFrameSize,
+                        true, lossRate
                 );
                 messageToBroadcast.setPackage(packageToSend);
 
-                for (DeviceReachable device : devices) {
-                    sendPackageToDevice(device.getMacAddress(), packageToSend, context);
-                }
+                // broadcasts are bulk data, direct messages and control go first
+                sendPackageToDevices(macAddresses, packageToSend, DeliveryPriority.LOW, context);
             } catch (Exception e) {
                 Log.e(TAG_ID, "Broadcasting failed: " + e.getMessage());
             }
-        }).start();
+        });
     }
 
     public static void sendParcelToDevice(String macAddress, String gapData, Context context) {
@@ -91,24 +107,32 @@ public class BroadcastSender {
     }
 
     public static void sendPackageToDevice(String macAddress, BluePackage packageToSend, Context context) {
-        BlueQueueSending.getInstance(context).addPackageToSend(packageToSend);
-        packageToSend.resetParcelCounter();
-
-        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        sendPackageToDevice(macAddress, packageToSend, DeliveryPriority.NORMAL, context);
+    }
 
-        for (int i = 0; i <= packageToSend.getMessageParcelsTotal(); i++) {
-            final int index = i;
-            scheduler.schedule(() -> {
-                String text = packageToSend.getNextParcel();
-                Log.i(TAG_ID, "Sending message to " + macAddress + " with data: " + text);
-                Bluecomm.getInstance(context).writeData(macAddress, text);
+    public static void sendPackageToDevice(String macAddress, BluePackage packageToSend,
+                                           DeliveryPriority priority, Context context) {
+        sendPackageToDevices(Collections.singletonList(macAddress), packageToSend, priority, context);
+    }
 
-                if (index == packageToSend.getMessageParcelsTotal()) {
-                    Log.i(TAG_ID, "Message sent to Eddystone device: " + macAddress);
-                    scheduler.shutdown();
-                }
-            }, i * 500L, TimeUnit.MILLISECONDS);
+    /**
+     * Places the frames of a package on the queue of each device. Frames are
+     * encoded once and shared, each device keeps its own position on its
+     * queue and BlueQueueSending takes turns between the devices.
+     */
+    public static void sendPackageToDevices(Collection<String> macAddresses, BluePackage packageToSend,
+                                            DeliveryPriority priority, Context context) {
+        BlueQueueSending.getInstance(context).addPackageToSend(packageToSend);
+        List<byte[]> frames = packageToSend.getFrames();
+        Bluecomm bluecomm = Bluecomm.getInstance(context);
+        // frame by frame, so that every device gets the start of the package early
+        for (byte[] frame : frames) {
+            for (String macAddress : macAddresses) {
+                bluecomm.writeData(macAddress, frame, priority);
+            }
         }
+        Log.i(TAG_ID, "Package " + packageToSend.getId() + " with " + frames.size()
+                + " frames queued to " + macAddresses.size() + " device(s)");
     }
 
     public static void setMessageUpdateListener(MessageUpdateListener listener) {
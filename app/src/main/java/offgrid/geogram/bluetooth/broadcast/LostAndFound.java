@@ -4,8 +4,12 @@ import static offgrid.geogram.bluetooth.other.comms.BlueCommands.gapREPEAT;
 
 import android.content.Context;
 
+import java.util.BitSet;
+
 import offgrid.geogram.bluetooth.BlueQueueSending;
 import offgrid.geogram.bluetooth.other.comms.BlueCommands;
+import offgrid.geogram.bluetooth.other.comms.BlueFrameReader;
+import offgrid.geogram.bluetooth.other.comms.BlueNack;
 import offgrid.geogram.bluetooth.other.comms.BluePackage;
 import offgrid.geogram.bluetooth.Bluecomm;
 import offgrid.geogram.core.Log;
@@ -22,35 +26,30 @@ public class LostAndFound {
      * We received a parcel section that wasn't the initial one.
      * This means we need to ask the sending device to be patient
      * and send it once again.
-     * E.g. this is what we received: MH004:one
-     * @param receivedData whatever was received
+     * E.g. this is what we received: 4D004:one
+     * @param receivedData the parcel frame that was received
      * @param macAddress who is sending this to us
      * @param context to access files when needed
      */
-    public static void decodeLostPackage(String receivedData, String macAddress, Context context) {
+    public static void decodeLostPackage(BlueFrameReader receivedData, String macAddress, Context context) {
         // check the cases that we can handle here
-        if(receivedData == null || receivedData.contains(":") == false){
-            Log.i(TAG, "This isn't a packet that I can recover yet: " + receivedData);
-            return;
-        }
-        String[] data = receivedData.split(":");
-        int sizeOfHeader = data[0].length();
-        if(sizeOfHeader != 5){
-            Log.e(TAG, "Invalid header received, can't do much: " + receivedData);
+        if(receivedData == null || receivedData.getKind() != BlueFrameReader.Kind.PARCEL){
+            Log.i(TAG, "This isn't a packet that I can recover yet");
             return;
         }
         // get the package id
-        String packageId = data[0].substring(0, 2);
+        String packageId = receivedData.getId();
 
         // resend the package
         askToResendPackage(macAddress, packageId, context);
-        Log.i(TAG, "Lost package detected, requesting to be sent again: " + receivedData);
+        Log.i(TAG, "Lost package detected, requesting to be sent again: " + packageId);
     }
 
     public static void askToResendPackage(String macAddress, String packageId, Context context) {
         String message = gapREPEAT + ":" +packageId;
         // avoid sending duplicates
-        if(BlueQueueSending.getInstance(context).isAlreadyOnQueueToSend(message, macAddress)){
+        if(BlueQueueSending.getInstance(context).isAlreadyOnQueueToSend(
+                BlueCommands.oneLineCommandGapBroadcast + message, macAddress)){
             return;
         }
 
@@ -58,6 +57,48 @@ public class LostAndFound {
         BroadcastSender.sendParcelToDevice(macAddress, message, context);
     }
 
+    /**
+     * Asks the sender for the parcels of a package that are still missing,
+     * or for the whole package when all parcels arrived but it isn't valid.
+     * @param macAddress who is sending this package to us
+     * @param packageIncomplete the package that is being received
+     * @param context useful for transmitting data
+     */
+    public static void askToResendMissing(String macAddress, BluePackage packageIncomplete, Context context) {
+        BitSet missing = packageIncomplete.getMissingParcels();
+        if(missing.isEmpty()){
+            askToResendPackage(macAddress, packageIncomplete.getId(), context);
+            return;
+        }
+        askToResendParcels(macAddress, packageIncomplete, missing, context);
+    }
+
+    /**
+     * Asks the sender for specific parcels of a package, so that only
+     * those are sent again instead of the whole package.
+     * @param macAddress who is sending this package to us
+     * @param packageIncomplete the package that is being received
+     * @param parcels indexes of the parcels to ask again
+     * @param context useful for transmitting data
+     */
+    public static void askToResendParcels(String macAddress, BluePackage packageIncomplete,
+                                          BitSet parcels, Context context) {
+        // needs to fit on a single write to that device
+        int maxLength = Bluecomm.getInstance(context).getMaxFrameSize(macAddress);
+        BlueNack request = BlueNack.create(packageIncomplete.getId(), parcels, maxLength);
+        if(request == null){
+            return;
+        }
+        packageIncomplete.setRequested(request.getParcels());
+        String message = request.encode();
+        // avoid sending duplicates
+        if(BlueQueueSending.getInstance(context).isAlreadyOnQueueToSend(
+                BlueCommands.oneLineCommandGapBroadcast + message, macAddress)){
+            return;
+        }
+        BroadcastSender.sendParcelToDevice(macAddress, message, context);
+    }
+
     /**
      * Checks if there is a missing gap on the parcels being received.
      * Whenever one is detected as missing, will ask for it again.
@@ -71,15 +112,14 @@ public class LostAndFound {
             return false;
         }
 
-        String packageId = packageIncomplete.getId();
-        // resend the package
-        askToResendPackage(macAddress, packageId, context);
-        Log.i(TAG, "Lost package detected, requesting to be sent again: " + packageId);
-//        // get the first gap that is missing
-//        String gapIndex = packageIncomplete.getFirstGapParcel();
-//        // send this request back to the other device
-//        BroadcastSendMessage.sendParcelToDevice(macAddress, gapIndex, context);
-//        // there are still gaps, don't let this continue
+        // ask only for the parcels lost, and only once
+        BitSet gaps = packageIncomplete.getGapsNotRequested();
+        if(gaps.isEmpty() == false){
+            askToResendParcels(macAddress, packageIncomplete, gaps, context);
+            Log.i(TAG, "Lost parcels detected on " + packageIncomplete.getId()
+                    + ", requesting to be sent again: " + gaps);
+        }
+        // there are still gaps, don't let this continue
         return true;
     }
 
@@ -12,13 +12,14 @@ import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.os.Handler;
 
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
-import offgrid.geogram.bluetooth.other.comms.Mutex;
+import offgrid.geogram.bluetooth.BlueLocks;
+import offgrid.geogram.bluetooth.BlueQueueSending;
 import offgrid.geogram.core.Log;
 import offgrid.geogram.devices.DeviceReachable;
 
@@ -33,7 +34,8 @@ public class DeviceFinder {
 
     private final Context context;
     private final BluetoothAdapter bluetoothAdapter;
-    private final HashMap<String, DeviceReachable> deviceMap = new HashMap<>();
+    // written from the scan callbacks and read from other threads
+    private final ConcurrentHashMap<String, DeviceReachable> deviceMap = new ConcurrentHashMap<>();
     private boolean isScanning = false;
     private final Handler scanHandler = new Handler();
     private final ScheduledExecutorService scanScheduler = Executors.newSingleThreadScheduledExecutor();
@@ -95,12 +97,12 @@ public class DeviceFinder {
      */
     private void startSingleScan() {
 
-        // avoid actions when we are receiving data
-        if(Mutex.getInstance().isLocked()){
+        // avoid starting in the middle of a connection, the next scan comes soon
+        BlueLocks locks = BlueLocks.getInstance();
+        if(locks.lockAdapterForScan(BlueLocks.timeToWaitForScan) == false){
             return;
         }
 
-
         try {
             ScanFilter filter = new ScanFilter.Builder()
                     .setServiceUuid(EDDYSTONE_SERVICE_UUID)
@@ -118,6 +120,8 @@ public class DeviceFinder {
             //Log.i(TAG, "Started single scan for Eddystone devices.");
         } catch (SecurityException e) {
             Log.i(TAG, "SecurityException while starting scan: " + e.getMessage());
+        } finally {
+            locks.unlockAdapterForScan();
         }
 
     }
@@ -157,9 +161,9 @@ public class DeviceFinder {
     }
 
     /**
-     * Gets the up-to-date HashMap of discovered devices.
+     * Gets the up-to-date map of discovered devices.
      */
-    public HashMap<String, DeviceReachable> getDeviceMap() {
+    public ConcurrentHashMap<String, DeviceReachable> getDeviceMap() {
         return deviceMap;
     }
 
@@ -198,14 +202,17 @@ public class DeviceFinder {
 //            return;
 //        }
 
-        // reserve the bluetooth handler
-        Mutex.getInstance().lock();
-
         byte[] serviceData = result.getScanRecord().getServiceData(EDDYSTONE_SERVICE_UUID);
         if (serviceData == null) {
             return;
         }
 
+        // scan results arrive one at a time on the same thread
+        updateDevice(result, serviceData);
+    }
+
+    private void updateDevice(ScanResult result, byte[] serviceData) {
+
         String deviceId = extractInstanceId(serviceData);
         if (deviceId.length() == 12) {
             deviceId = deviceId.substring(0, deviceId.length() - 6);
@@ -231,8 +238,8 @@ public class DeviceFinder {
         deviceFound.setServiceData(serviceData);
         deviceFound.setMacAddress(result.getDevice().getAddress());
 
-        // unlock it
-        Mutex.getInstance().unlock();
+        // parcels paused for this device can be tried again
+        BlueQueueSending.getInstance(context).deviceSeen(result.getDevice().getAddress());
     }
 
 //    /**
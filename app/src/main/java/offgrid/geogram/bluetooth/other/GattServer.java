@@ -19,10 +19,15 @@ import android.os.Handler;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
+import offgrid.geogram.bluetooth.BlueInboundQueue;
 import offgrid.geogram.bluetooth.BlueQueueReceiving;
 import offgrid.geogram.bluetooth.BlueQueueSending;
+import offgrid.geogram.bluetooth.BlueRateController;
 import offgrid.geogram.bluetooth.BlueReceiver;
+import offgrid.geogram.bluetooth.Bluecomm;
+import offgrid.geogram.bluetooth.other.comms.BlueCommands;
 import offgrid.geogram.core.Log;
 
 public class GattServer {
@@ -33,10 +38,17 @@ public class GattServer {
     private final Context context;
     private BluetoothGattServer gattServer = null;
     private final Handler handler = new Handler();
+    // writes from other devices wait here to be processed by a single thread
+    private final BlueInboundQueue inbound;
+    // last time each device was told that we are busy, <MAC address, time>
+    private final ConcurrentHashMap<String, Long> timeLastBusy = new ConcurrentHashMap<>();
 
 
     private GattServer(Context context) {
         this.context = context.getApplicationContext();
+        this.inbound = new BlueInboundQueue(BlueInboundQueue.capacityDefault,
+                (macAddress, data) -> BlueReceiver.getInstance()
+                        .receivingDataFromDevice(macAddress, data, this.context));
         initializeGattServer();
     }
 
@@ -301,6 +313,21 @@ public class GattServer {
         }
     }
 
+    /**
+     * Tells a device that its writes are being dropped, at most once
+     * for each decrease of its rate so the warnings don't pile up.
+     */
+    private void tellBusy(String macAddress) {
+        long now = System.currentTimeMillis();
+        Long last = timeLastBusy.get(macAddress);
+        if (last != null && now - last < BlueRateController.timeBetweenDecreases) {
+            return;
+        }
+        timeLastBusy.put(macAddress, now);
+        handler.post(() -> Bluecomm.getInstance(context)
+                .writeData(macAddress, BlueCommands.oneLineCommandBusy));
+    }
+
     /**
      * Custom callback for GATT server operations.
      */
@@ -332,6 +359,13 @@ public class GattServer {
         }
 
 
+        // The other device negotiated a new MTU with us
+        @Override
+        public void onMtuChanged(BluetoothDevice device, int mtu) {
+            super.onMtuChanged(device, mtu);
+            Bluecomm.getInstance(context).setMtu(device.getAddress(), mtu);
+        }
+
         // Answer to a previous request
         @Override
         public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
@@ -374,59 +408,55 @@ public class GattServer {
                 return;
             }
 
-            // Handle the write request in a new thread
-            Thread thread = new Thread(() -> {
-                try {
-                    // Get the proper value for the request
-                    String received = new String(value);
-                    if(received.isEmpty()){
-                        Log.e(TAG, "Received empty string from " + device.getAddress());
-                        return;
-                    }
-                    BlueReceiver dataWriteFromOutside = BlueReceiver.getInstance();
-                    dataWriteFromOutside.receivingDataFromDevice(device.getAddress(), received, context);
-
-                    // If response is needed, send it on the main thread
-                    if (responseNeeded) {
-                        handler.post(() -> {
-                            try {
-                                if (context.checkSelfPermission(android.Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
-                                    String responseMessage = "OK";
-                                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, responseMessage.getBytes());
-                                    Log.i(TAG, "Response sent to " + device.getAddress() + ": " + responseMessage);
-                                } else {
-                                    Log.e(TAG, "Missing BLUETOOTH_CONNECT permission, cannot send response.");
-                                }
-                            } catch (SecurityException e) {
-                                Log.e(TAG, "SecurityException while sending write response: " + e.getMessage());
-                            } catch (Exception e) {
-                                Log.e(TAG, "Unexpected error while sending write response: " + e.getMessage());
-                            }
-                        });
-                    }
+            // copy the data to the inbound queue, it is processed on its own thread
+            boolean accepted = value != null && value.length > 0
+                    && inbound.offer(device.getAddress(), value);
+            if (value == null || value.length == 0) {
+                Log.e(TAG, "Received empty data from " + device.getAddress());
+            }
 
-                    // Optionally notify the client if notifications are enabled
-                    if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
-                        handler.post(() -> {
-                            try {
-                                if (context.checkSelfPermission(android.Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
-                                    characteristic.setValue("Notification: " + received);
-                                    gattServer.notifyCharacteristicChanged(device, characteristic, false);
-                                    Log.i(TAG, "Notification sent to " + device.getAddress() + ": " + received);
-                                } else {
-                                    Log.e(TAG, "Missing BLUETOOTH_CONNECT permission, cannot send notification.");
-                                }
-                            } catch (Exception e) {
-                                Log.e(TAG, "Error while sending notification: " + e.getMessage());
-                            }
-                        });
+            // parcels are written without response, the other device
+            // only learns that the queue is full when we tell it
+            if (value != null && value.length > 0 && accepted == false) {
+                tellBusy(device.getAddress());
+            }
+
+            // If response is needed, send it on the main thread
+            if (responseNeeded) {
+                int status = accepted ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE;
+                handler.post(() -> {
+                    try {
+                        if (context.checkSelfPermission(android.Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
+                            String responseMessage = accepted ? "OK" : "BUSY";
+                            gattServer.sendResponse(device, requestId, status, offset, responseMessage.getBytes());
+                        } else {
+                            Log.e(TAG, "Missing BLUETOOTH_CONNECT permission, cannot send response.");
+                        }
+                    } catch (SecurityException e) {
+                        Log.e(TAG, "SecurityException while sending write response: " + e.getMessage());
+                    } catch (Exception e) {
+                        Log.e(TAG, "Unexpected error while sending write response: " + e.getMessage());
                     }
+                });
+            }
 
-                } catch (Exception e) {
-                    Log.e(TAG, "Exception while handling request: " + e.getMessage());
-                }
-            });
-            thread.start();
+            // Optionally notify the client if notifications are enabled
+            if (accepted && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+                handler.post(() -> {
+                    try {
+                        if (context.checkSelfPermission(android.Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
+                            String received = new String(value);
+                            characteristic.setValue("Notification: " + received);
+                            gattServer.notifyCharacteristicChanged(device, characteristic, false);
+                            Log.i(TAG, "Notification sent to " + device.getAddress() + ": " + received);
+                        } else {
+                            Log.e(TAG, "Missing BLUETOOTH_CONNECT permission, cannot send notification.");
+                        }
+                    } catch (Exception e) {
+                        Log.e(TAG, "Error while sending notification: " + e.getMessage());
+                    }
+                });
+            }
         }
 
 
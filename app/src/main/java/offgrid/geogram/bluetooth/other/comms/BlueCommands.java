@@ -11,7 +11,9 @@ public class BlueCommands {
             oneLineCommandBio = ">BIO:",        // request to send back the biographical details
             oneLineCommandGapBroadcast = ">B:", // means a one line statement
             gapREPEAT = "REPEAT",               // please send the whole package again
+            gapNACK = "NACK",                   // please send again only these parcels
             oneLineCommandPing = ">PING:",      // send the Mac Address and Device Id
-            oneLineAcknowledgement = ">ACK:";   // confirm that a package was received
+            oneLineAcknowledgement = ">ACK:",   // confirm that packages were received, e.g. >ACK:2A1A78:3F4B:287
+            oneLineCommandBusy = ">BUSY";       // writes are arriving faster than we process them, slow down
 
 }
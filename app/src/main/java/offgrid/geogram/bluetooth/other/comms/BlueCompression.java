@@ -0,0 +1,138 @@
+package offgrid.geogram.bluetooth.other.comms;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the data of a BluePackage with raw deflate and a
+ * preset dictionary built into the app. Our payloads are short
+ * texts and profiles in JSON, which don't compress on their own
+ * but shrink well against a dictionary of what they usually contain.
+ *
+ * The dictionary version is written on the flags of the header
+ * (see BlueFrame), version 0 means the data is not compressed.
+ * Dictionaries must never change once released, add a new version
+ * instead so that devices with older versions of the app can still
+ * read what they support.
+ */
+public class BlueCompression {
+
+    public static final int
+            NONE = 0,
+            DICTIONARY_V1 = 1,
+            CURRENT = DICTIONARY_V1,
+            MASK = 0x03;            // header flags used for the dictionary version
+
+    // Strings more likely to appear go at the end, closer to the data
+    private static final byte[] dictionaryV1 = (
+            " the you and to is it that for this what where when how have with"
+            + " can we are not be all on at of in my me so do just like here there"
+            + " now going come see know good thanks please yes no ok hi hello"
+            + " Light Gray Dark Gray Light Blue Light Green Light Cyan Light Red"
+            + " Yellow White Black Blue Green Cyan Red Magenta Pink Brown"
+            + "\",\"extra\":\"\",\"npub\":\"npub1"
+            + BlueCommands.tagBio + "{\"id\":\"\",\"nick\":\"\",\"color\":\""
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private BlueCompression() {
+    }
+
+    /**
+     * Compresses data with the current dictionary.
+     *
+     * @param data the bytes to compress
+     * @return the compressed bytes, or null when compression doesn't make them smaller
+     */
+    public static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setDictionary(getDictionary(CURRENT));
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(data.length);
+            byte[] buffer = new byte[256];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                output.write(buffer, 0, count);
+                if (output.size() >= data.length) {
+                    return null;
+                }
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Restores data compressed by {@link #compress(byte[])}.
+     *
+     * @param data    the compressed bytes
+     * @param version dictionary version written on the header
+     * @return the original bytes, or null when the data is not valid
+     *         or grows past {@link BluePackage#MAX_DATA_SIZE}
+     */
+    public static byte[] decompress(byte[] data, int version) {
+        return decompress(data, data.length, version);
+    }
+
+    /**
+     * Restores data compressed by {@link #compress(byte[])} from the
+     * start of an array that may be longer than the data.
+     *
+     * @param data    array with the compressed bytes at the start
+     * @param length  number of compressed bytes
+     * @param version dictionary version written on the header
+     * @return the original bytes, or null when the data is not valid
+     *         or grows past {@link BluePackage#MAX_DATA_SIZE}
+     */
+    public static byte[] decompress(byte[] data, int length, int version) {
+        byte[] dictionary = getDictionary(version);
+        if (dictionary == null) {
+            return null;
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(dictionary);
+            // raw inflate may need one extra byte after the data
+            byte[] input = new byte[length + 1];
+            System.arraycopy(data, 0, input, 0, length);
+            inflater.setInput(input);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(length * 4);
+            byte[] buffer = new byte[256];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return null;
+                }
+                output.write(buffer, 0, count);
+                // a few kilobytes from another device can inflate to megabytes
+                if (output.size() > BluePackage.MAX_DATA_SIZE) {
+                    return null;
+                }
+            }
+            return output.toByteArray();
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Checks if this device is able to read data compressed with a version.
+     */
+    public static boolean isSupported(int version) {
+        return version == NONE || getDictionary(version) != null;
+    }
+
+    private static byte[] getDictionary(int version) {
+        if (version == DICTIONARY_V1) {
+            return dictionaryV1;
+        }
+        return null;
+    }
+}
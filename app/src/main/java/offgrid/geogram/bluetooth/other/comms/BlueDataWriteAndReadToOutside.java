@@ -5,6 +5,8 @@ import static offgrid.geogram.bluetooth.Bluecomm.timeBetweenMessages;
 
 import android.content.Context;
 
+import java.nio.charset.StandardCharsets;
+
 import offgrid.geogram.bluetooth.Bluecomm;
 import offgrid.geogram.core.Log;
 
@@ -73,10 +75,12 @@ public class BlueDataWriteAndReadToOutside {
                     public void onDataSuccess(String data) {
                         Log.i(TAG, "Data received: " + data);
                         try {
+                            // frames are read as ISO-8859-1 text, convert them back to bytes
+                            byte[] frame = data.getBytes(StandardCharsets.ISO_8859_1);
                             if(requestData == null){
-                                requestData = BluePackage.createReceiver(data);
+                                requestData = BluePackage.createReceiver(frame);
                             }else{
-                                requestData.receiveParcel(data);
+                                requestData.receiveParcel(frame);
                             }
                         } catch (Exception e) {
                             Log.e(TAG, "Invalid data: " + e.getMessage());
@@ -0,0 +1,398 @@
+package offgrid.geogram.bluetooth.other.comms;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Binary wire format for the frames written over bluetooth.
+ * <p>
+ * The first byte of every frame carries the frame type on the
+ * high nibble and the flags on the low nibble. Frame types always
+ * have the high bit set, so they never collide with the one-line
+ * text commands (which start with the ASCII character '>').
+ *
+ * <pre>
+ * header: [0x8 | flags][id][total hi][total lo][crc32c x4][command][deviceId...]
+ * parcel: [0x9 | flags][id][index hi][index lo][payload...]
+ * single: [0xA | flags][id][command][deviceId length][deviceId...][acks...][payload...]
+ * </pre>
+ *
+ * A single frame carries a whole package that fits in one write,
+ * without a header before it. The link layer already checks each
+ * write, so it has no checksum of its own. With FLAG_ACKS it also
+ * confirms packages received from the device it is written to:
+ * one byte with the number of ids and then one byte for each id.
+ *
+ * The package id is a single byte, written on the text commands
+ * as two hexadecimal characters (e.g. "3F").
+ * <p>
+ * Header flags: bits 0-1 hold the dictionary version used to
+ * compress the data (see BlueCompression), 0 when not compressed,
+ * bits 2-3 the number of parity parcels (see BlueParity).
+ * Parcel flags: FLAG_PARITY marks a parity parcel, its index
+ * is then the parity group instead of the data position.
+ */
+public class BlueFrame {
+
+    public static final byte
+            TYPE_HEADER = (byte) 0x80,
+            TYPE_PARCEL = (byte) 0x90,
+            TYPE_SINGLE = (byte) 0xA0;
+
+    public static final int
+            FLAG_PARITY = 0x01,
+            FLAG_ACKS = 0x01;   // on single frames
+
+    private static final int
+            MASK_TYPE = 0xF0,
+            MASK_FLAGS = 0x0F;
+
+    public static final int
+            PARCEL_HEADER_SIZE = 4,   // type + id + index (2 bytes)
+            HEADER_FIXED_SIZE = 9,    // type + id + total (2 bytes) + checksum (4) + command
+            SINGLE_FIXED_SIZE = 4,    // type + id + command + length of the device id
+            CHECKSUM_SIZE = 4,
+            MAX_PARCELS = 0xFFFF;
+
+    // ids written as text, created once instead of for every frame
+    private static final String[] IDS = new String[256];
+
+    static {
+        for (int i = 0; i < IDS.length; i++) {
+            IDS[i] = String.format(Locale.US, "%02X", i);
+        }
+    }
+
+    private final byte type;
+    private final int flags;
+    private final String id;
+    private final int index;
+    private final int checksum;
+    private final DataType command;
+    private final String deviceId;
+    private final byte[] frame;
+    private final int payloadOffset;
+
+    private BlueFrame(byte type, int flags, String id, int index,
+                      int checksum, DataType command, String deviceId,
+                      byte[] frame, int payloadOffset) {
+        this.type = type;
+        this.flags = flags;
+        this.id = id;
+        this.index = index;
+        this.checksum = checksum;
+        this.command = command;
+        this.deviceId = deviceId;
+        this.frame = frame;
+        this.payloadOffset = payloadOffset;
+    }
+
+    /**
+     * Encodes the header frame that opens a package.
+     *
+     * @param id           package id as two hexadecimal characters
+     * @param parcelsTotal number of data parcels that will follow
+     * @param checksum     CRC32C of the complete data, see BluePackage
+     * @param command      type of data inside the package
+     * @param deviceId     id of the device sending the package
+     * @param flags        flags for the package (lower 4 bits)
+     * @return the encoded frame
+     */
+    public static byte[] encodeHeader(String id, int parcelsTotal, int checksum,
+                                      DataType command, String deviceId, int flags) {
+        if (parcelsTotal < 0 || parcelsTotal > MAX_PARCELS) {
+            throw new IllegalArgumentException("Too many parcels: " + parcelsTotal);
+        }
+        byte[] deviceBytes = deviceId == null
+                ? new byte[0]
+                : deviceId.getBytes(StandardCharsets.US_ASCII);
+        byte[] result = new byte[HEADER_FIXED_SIZE + deviceBytes.length];
+        result[0] = (byte) (TYPE_HEADER | (flags & MASK_FLAGS));
+        result[1] = idToByte(id);
+        result[2] = (byte) (parcelsTotal >> 8);
+        result[3] = (byte) parcelsTotal;
+        result[4] = (byte) (checksum >> 24);
+        result[5] = (byte) (checksum >> 16);
+        result[6] = (byte) (checksum >> 8);
+        result[7] = (byte) checksum;
+        result[8] = (byte) command.name().charAt(0);
+        System.arraycopy(deviceBytes, 0, result, HEADER_FIXED_SIZE, deviceBytes.length);
+        return result;
+    }
+
+    /**
+     * Encodes one data parcel of a package.
+     *
+     * @param id      package id as two hexadecimal characters
+     * @param index   index of the parcel (0-based)
+     * @param payload data carried by the parcel
+     * @param flags   flags for the parcel (lower 4 bits)
+     * @return the encoded frame
+     */
+    public static byte[] encodeParcel(String id, int index, byte[] payload, int flags) {
+        return encodeParcel(id, index, ByteBuffer.wrap(payload), flags);
+    }
+
+    /**
+     * Encodes one data parcel of a package from a view of its data,
+     * the position of the view is not changed.
+     */
+    public static byte[] encodeParcel(String id, int index, ByteBuffer payload, int flags) {
+        if (index < 0 || index > MAX_PARCELS) {
+            throw new IllegalArgumentException("Invalid parcel index: " + index);
+        }
+        byte[] result = new byte[PARCEL_HEADER_SIZE + payload.remaining()];
+        result[0] = (byte) (TYPE_PARCEL | (flags & MASK_FLAGS));
+        result[1] = idToByte(id);
+        result[2] = (byte) (index >> 8);
+        result[3] = (byte) index;
+        payload.duplicate().get(result, PARCEL_HEADER_SIZE, payload.remaining());
+        return result;
+    }
+
+    /**
+     * Encodes a whole package on a single frame.
+     *
+     * @param id       package id as two hexadecimal characters
+     * @param command  type of data inside the package
+     * @param deviceId id of the device sending the package
+     * @param payload  the data of the package
+     * @return the encoded frame
+     */
+    public static byte[] encodeSingle(String id, DataType command, String deviceId, byte[] payload) {
+        byte[] deviceBytes = deviceId == null
+                ? new byte[0]
+                : deviceId.getBytes(StandardCharsets.US_ASCII);
+        if (deviceBytes.length > 0xFF) {
+            throw new IllegalArgumentException("Device id too long: " + deviceId);
+        }
+        int offset = SINGLE_FIXED_SIZE + deviceBytes.length;
+        byte[] result = new byte[offset + payload.length];
+        result[0] = TYPE_SINGLE;
+        result[1] = idToByte(id);
+        result[2] = (byte) command.name().charAt(0);
+        result[3] = (byte) deviceBytes.length;
+        System.arraycopy(deviceBytes, 0, result, SINGLE_FIXED_SIZE, deviceBytes.length);
+        System.arraycopy(payload, 0, result, offset, payload.length);
+        return result;
+    }
+
+    /**
+     * Copies a single frame adding the ids of packages being acknowledged.
+     *
+     * @param single a single frame without acknowledgements
+     * @param ids    package ids as two hexadecimal characters, at most 255
+     * @return the new frame, which is 1 + ids bytes longer
+     */
+    public static byte[] addAcks(byte[] single, List<String> ids) {
+        if (single[0] != TYPE_SINGLE || ids.size() > 0xFF) {
+            throw new IllegalArgumentException("Unable to add acknowledgements");
+        }
+        int offset = SINGLE_FIXED_SIZE + (single[3] & 0xFF);
+        byte[] result = new byte[single.length + 1 + ids.size()];
+        System.arraycopy(single, 0, result, 0, offset);
+        result[0] = (byte) (TYPE_SINGLE | FLAG_ACKS);
+        result[offset] = (byte) ids.size();
+        for (int i = 0; i < ids.size(); i++) {
+            result[offset + 1 + i] = idToByte(ids.get(i));
+        }
+        System.arraycopy(single, offset, result, offset + 1 + ids.size(), single.length - offset);
+        return result;
+    }
+
+    /**
+     * Checks if a frame is a single frame that can still carry acknowledgements.
+     */
+    public static boolean canCarryAcks(byte[] data) {
+        return data != null && data.length >= SINGLE_FIXED_SIZE && data[0] == TYPE_SINGLE;
+    }
+
+    /**
+     * Size of the single frame for a package, to know if it fits in one write.
+     */
+    public static int getSingleSize(String deviceId, int payloadLength) {
+        return SINGLE_FIXED_SIZE + (deviceId == null ? 0 : deviceId.length()) + payloadLength;
+    }
+
+    /**
+     * Checks if the data received is a binary frame or something else
+     * such as a one-line text command.
+     */
+    public static boolean isFrame(byte[] data) {
+        if (data == null || data.length == 0) {
+            return false;
+        }
+        int type = data[0] & MASK_TYPE;
+        return type == (TYPE_HEADER & MASK_TYPE) || type == (TYPE_PARCEL & MASK_TYPE)
+                || type == (TYPE_SINGLE & MASK_TYPE);
+    }
+
+    /**
+     * Decodes a frame received from another device.
+     *
+     * @param data the raw bytes written to our characteristic
+     * @return the decoded frame, or {@code null} when the frame is not valid
+     */
+    public static BlueFrame decode(byte[] data) {
+        if (!isFrame(data)) {
+            return null;
+        }
+        byte type = (byte) (data[0] & MASK_TYPE);
+        int flags = data[0] & MASK_FLAGS;
+        if (type == TYPE_HEADER) {
+            if (data.length < HEADER_FIXED_SIZE) {
+                return null;
+            }
+            DataType command = DataType.fromString(String.valueOf((char) data[8]));
+            int checksum = ((data[4] & 0xFF) << 24) | ((data[5] & 0xFF) << 16)
+                    | ((data[6] & 0xFF) << 8) | (data[7] & 0xFF);
+            String deviceId = new String(data, HEADER_FIXED_SIZE,
+                    data.length - HEADER_FIXED_SIZE, StandardCharsets.US_ASCII);
+            return new BlueFrame(type, flags, byteToId(data[1]), readIndex(data),
+                    checksum, command, deviceId, data, data.length);
+        }
+        if (type == TYPE_SINGLE) {
+            if (data.length < SINGLE_FIXED_SIZE
+                    || data.length < SINGLE_FIXED_SIZE + (data[3] & 0xFF)) {
+                return null;
+            }
+            DataType command = DataType.fromString(String.valueOf((char) data[2]));
+            String deviceId = new String(data, SINGLE_FIXED_SIZE, data[3] & 0xFF,
+                    StandardCharsets.US_ASCII);
+            int payloadOffset = SINGLE_FIXED_SIZE + (data[3] & 0xFF);
+            if ((flags & FLAG_ACKS) != 0) {
+                if (data.length <= payloadOffset
+                        || data.length < payloadOffset + 1 + (data[payloadOffset] & 0xFF)) {
+                    return null;
+                }
+                payloadOffset += 1 + (data[payloadOffset] & 0xFF);
+            }
+            return new BlueFrame(type, flags, byteToId(data[1]), 0,
+                    0, command, deviceId, data, payloadOffset);
+        }
+        if (data.length < PARCEL_HEADER_SIZE) {
+            return null;
+        }
+        return new BlueFrame(type, flags, byteToId(data[1]), readIndex(data),
+                0, null, null, data, PARCEL_HEADER_SIZE);
+    }
+
+    private static int readIndex(byte[] data) {
+        return ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+    }
+
+    /**
+     * Converts the two hexadecimal characters of a package id into one byte.
+     */
+    public static byte idToByte(String id) {
+        if (id == null || id.length() != 2) {
+            throw new IllegalArgumentException("Invalid package id: " + id);
+        }
+        return (byte) Integer.parseInt(id, 16);
+    }
+
+    /**
+     * Converts a byte back into the two hexadecimal characters of a package id.
+     */
+    public static String byteToId(byte value) {
+        return IDS[value & 0xFF];
+    }
+
+    public boolean isHeader() {
+        return type == TYPE_HEADER;
+    }
+
+    public boolean isParcel() {
+        return type == TYPE_PARCEL;
+    }
+
+    public boolean isSingle() {
+        return type == TYPE_SINGLE;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * On a header this is the total number of parcels,
+     * on a data parcel this is the index of the parcel.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public int getChecksum() {
+        return checksum;
+    }
+
+    public DataType getCommand() {
+        return command;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * Copies the data carried inside this frame.
+     */
+    public byte[] getPayload() {
+        return Arrays.copyOfRange(frame, payloadOffset, frame.length);
+    }
+
+    // used by BluePackage to copy the payload without a view
+    byte[] getFrame() {
+        return frame;
+    }
+
+    int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    public int getPayloadLength() {
+        return frame.length - payloadOffset;
+    }
+
+    /**
+     * Compares the payload of this frame with the given data.
+     */
+    public boolean payloadEquals(byte[] data) {
+        if (data == null || data.length != getPayloadLength()) {
+            return false;
+        }
+        for (int i = 0; i < data.length; i++) {
+            if (frame[payloadOffset + i] != data[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Human-readable version of the frame, useful for the logs.
+     * E.g. "3F:005:1A2B3C4D:B:2a1a78", "3F000:/bio:{"color":" or "3F:C:2a1a78:hello"
+     */
+    @Override
+    public String toString() {
+        if (isHeader()) {
+            return String.format(Locale.US, "%s:%03d:%08X:%s:%s",
+                    id, index, checksum, command, deviceId);
+        }
+        if (isSingle()) {
+            return String.format(Locale.US, "%s:%s:%s:%s", id, command, deviceId,
+                    new String(frame, payloadOffset, frame.length - payloadOffset,
+                            StandardCharsets.UTF_8));
+        }
+        return String.format(Locale.US, "%s%03d:%s", id, index,
+                new String(frame, payloadOffset, frame.length - payloadOffset,
+                        StandardCharsets.UTF_8));
+    }
+}
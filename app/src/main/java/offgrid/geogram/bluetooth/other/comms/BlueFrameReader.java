@@ -0,0 +1,182 @@
+package offgrid.geogram.bluetooth.other.comms;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the data written to our characteristic in a single pass,
+ * without creating objects for each frame. The same reader is
+ * reused for every write, so its values are only valid until
+ * the next call to {@link #read(byte[])}.
+ * <p>
+ * Use {@link BlueFrame} when the frame needs to be kept.
+ */
+public class BlueFrameReader {
+
+    public enum Kind {
+        INVALID,
+        HEADER,     // opens a package, see BlueFrame
+        PARCEL,     // data or parity parcel of a package
+        SINGLE,     // whole package on one frame
+        COMMAND     // one-line text command, e.g. >B:REPEAT:3F
+    }
+
+    private static final byte COMMAND_START = '>';
+
+    private byte[] data;
+    private Kind kind = Kind.INVALID;
+    private int flags;
+    private int id;
+    private int index;
+    private int command;
+    private int acksOffset;
+    private int payloadOffset;
+
+    /**
+     * Classifies the data and finds where each field is.
+     *
+     * @param data the raw bytes written to our characteristic
+     * @return the kind of data that was read
+     */
+    public Kind read(byte[] data) {
+        this.data = data;
+        this.kind = Kind.INVALID;
+        if (data == null || data.length == 0) {
+            return kind;
+        }
+        byte first = data[0];
+        if (first == COMMAND_START) {
+            kind = Kind.COMMAND;
+            payloadOffset = 0;
+            return kind;
+        }
+        byte type = (byte) (first & 0xF0);
+        int minimum = type == BlueFrame.TYPE_HEADER ? BlueFrame.HEADER_FIXED_SIZE
+                : type == BlueFrame.TYPE_PARCEL ? BlueFrame.PARCEL_HEADER_SIZE
+                : type == BlueFrame.TYPE_SINGLE ? BlueFrame.SINGLE_FIXED_SIZE
+                : Integer.MAX_VALUE;
+        if (data.length < minimum) {
+            return kind;
+        }
+        flags = first & 0x0F;
+        id = data[1] & 0xFF;
+        if (type == BlueFrame.TYPE_SINGLE) {
+            payloadOffset = BlueFrame.SINGLE_FIXED_SIZE + (data[3] & 0xFF);
+            acksOffset = payloadOffset;
+            if ((flags & BlueFrame.FLAG_ACKS) != 0) {
+                if (data.length <= payloadOffset) {
+                    return kind;
+                }
+                payloadOffset += 1 + (data[payloadOffset] & 0xFF);
+            }
+            if (data.length < payloadOffset) {
+                return kind;
+            }
+            command = data[2];
+            index = 0;
+            kind = Kind.SINGLE;
+            return kind;
+        }
+        index = ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+        if (type == BlueFrame.TYPE_HEADER) {
+            kind = Kind.HEADER;
+            payloadOffset = BlueFrame.HEADER_FIXED_SIZE;
+        } else {
+            kind = Kind.PARCEL;
+            payloadOffset = BlueFrame.PARCEL_HEADER_SIZE;
+        }
+        return kind;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean isParity() {
+        return kind == Kind.PARCEL && (flags & BlueFrame.FLAG_PARITY) != 0;
+    }
+
+    /**
+     * Package id as two hexadecimal characters, e.g. "3F".
+     */
+    public String getId() {
+        return BlueFrame.byteToId((byte) id);
+    }
+
+    /**
+     * On a header this is the total number of parcels,
+     * on a parcel this is the index of the parcel.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Type of data on a single frame.
+     */
+    public DataType getDataType() {
+        return kind == Kind.SINGLE ? DataType.fromString(String.valueOf((char) command)) : null;
+    }
+
+    /**
+     * Id of the device that sent a single frame.
+     */
+    public String getDeviceId() {
+        return kind == Kind.SINGLE ? new String(data, BlueFrame.SINGLE_FIXED_SIZE,
+                acksOffset - BlueFrame.SINGLE_FIXED_SIZE, StandardCharsets.US_ASCII) : null;
+    }
+
+    /**
+     * Ids of the packages acknowledged by a single frame, empty when none.
+     */
+    public List<String> getAcks() {
+        ArrayList<String> result = new ArrayList<>();
+        if (kind != Kind.SINGLE || (flags & BlueFrame.FLAG_ACKS) == 0) {
+            return result;
+        }
+        for (int i = acksOffset + 1; i < payloadOffset; i++) {
+            result.add(BlueFrame.byteToId(data[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Decodes the text carried by a single frame.
+     */
+    public String getText() {
+        return kind == Kind.SINGLE ? new String(data, payloadOffset,
+                data.length - payloadOffset, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Where the acknowledgements start on a single frame, or the
+     * payload when there are none.
+     */
+    public int getAcksOffset() {
+        return acksOffset;
+    }
+
+    public int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    public int getPayloadLength() {
+        return data.length - payloadOffset;
+    }
+
+    /**
+     * Decodes the text of a command, only when it needs to be processed.
+     */
+    public String getCommand() {
+        return kind == Kind.COMMAND ? new String(data, StandardCharsets.UTF_8) : null;
+    }
+}
@@ -0,0 +1,119 @@
+package offgrid.geogram.bluetooth.other.comms;
+
+import java.util.BitSet;
+import java.util.Locale;
+
+/**
+ * Selective request for the parcels of a package that were lost,
+ * so that only those are sent again instead of the whole package.
+ * <p>
+ * Written as a single command, e.g. >B:NACK:XY:3:05 where XY is the
+ * package id, 3 is the index of the first parcel on the bitmap and
+ * 05 is the bitmap in hexadecimal. Bit k of byte j (least significant
+ * first) stands for parcel 3 + j * 8 + k, so this one asks for the
+ * parcels 3 and 5.
+ */
+public class BlueNack {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final String id;
+    private final BitSet parcels;
+
+    private BlueNack(String id, BitSet parcels) {
+        this.id = id;
+        this.parcels = parcels;
+    }
+
+    /**
+     * Creates a request for the missing parcels of a package that fits
+     * on a single write. When there are too many missing parcels, only
+     * the first ones are included and the rest are left for later.
+     *
+     * @param id        package id
+     * @param missing   indexes of the parcels missing
+     * @param maxLength maximum length of the command, e.g. the frame size
+     * @return the request, or null when no parcel is missing
+     */
+    public static BlueNack create(String id, BitSet missing, int maxLength) {
+        int first = missing.nextSetBit(0);
+        if (first < 0) {
+            return null;
+        }
+        String prefix = BlueCommands.oneLineCommandGapBroadcast
+                + prefix(id, first);
+        // two hex characters per byte, always at least one byte
+        int bytes = Math.max(1, (maxLength - prefix.length()) / 2);
+        BitSet parcels = missing.get(0, first + bytes * 8);
+        return new BlueNack(id, parcels);
+    }
+
+    /**
+     * Reads a request, e.g. NACK:XY:3:05
+     *
+     * @param text the command without the >B: at the start
+     * @return the request, or null when the text is not valid
+     */
+    public static BlueNack decode(String text) {
+        String[] data = text.split(":");
+        if (data.length != 4 || !data[0].equals(BlueCommands.gapNACK)
+                || data[3].length() % 2 != 0) {
+            return null;
+        }
+        try {
+            int first = Integer.parseInt(data[2]);
+            String bitmap = data[3];
+            // indexes beyond what a package can have would only waste memory
+            if (first < 0 || (long) first + bitmap.length() / 2 * 8L > BlueFrame.MAX_PARCELS + 1L) {
+                return null;
+            }
+            BitSet parcels = new BitSet();
+            for (int j = 0; j < bitmap.length() / 2; j++) {
+                int value = Integer.parseInt(bitmap.substring(j * 2, j * 2 + 2), 16);
+                for (int k = 0; k < 8; k++) {
+                    if ((value & (1 << k)) != 0) {
+                        parcels.set(first + j * 8 + k);
+                    }
+                }
+            }
+            return new BlueNack(data[1], parcels);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the request, e.g. NACK:XY:3:05
+     */
+    public String encode() {
+        int first = parcels.nextSetBit(0);
+        int last = parcels.length() - 1;
+        int bytes = (last - first) / 8 + 1;
+        StringBuilder text = new StringBuilder(prefix(id, first));
+        for (int j = 0; j < bytes; j++) {
+            int value = 0;
+            for (int k = 0; k < 8; k++) {
+                if (parcels.get(first + j * 8 + k)) {
+                    value |= 1 << k;
+                }
+            }
+            text.append(HEX[value >> 4]).append(HEX[value & 0x0F]);
+        }
+        return text.toString();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Indexes of the parcels that are requested.
+     */
+    public BitSet getParcels() {
+        return parcels;
+    }
+
+    private static String prefix(String id, int first) {
+        return String.format(Locale.US, "%s:%s:%d:", BlueCommands.gapNACK, id, first);
+    }
+}
@@ -9,13 +9,12 @@
  *
  * // Send parcels
  * while (!requestData.isComplete()) {
- *     String parcel = requestData.getNextParcel();
+ *     byte[] parcel = requestData.getNextParcel();
  *     sendParcel(parcel);  // Hypothetical method to send a parcel
  * }
  *
  * // Retrieve a specific parcel if needed
- * String specificParcel = requestData.getSpecificParcel(2);
- * System.out.println("Parcel 2: " + specificParcel);
+ * byte[] specificParcel = requestData.getSpecificParcel(2);
  *
  * // Check the status of the data transfer
  * if (!requestData.isTransferring()) {
@@ -23,28 +22,39 @@
  * }
  *
  * // Receiving side example:
- * BluePackage receiver = new BlueRequestData("AA:003"); // Header parcel received
- * receiver.receiveParcel("AA001:DataPart1");
- * receiver.receiveParcel("AA003:DataPart3");
- * receiver.receiveParcel("AA002:DataPart2");
+ * BluePackage receiver = BluePackage.createReceiver(header); // Header frame received
+ * receiver.receiveParcel(parcel0);
+ * receiver.receiveParcel(parcel2);
+ * receiver.receiveParcel(parcel1);
  * System.out.println("Complete data: " + receiver.getData());
  * }</pre>
  *
+ * The frames are encoded and decoded by {@link BlueFrame}.
+ *
  * This class is essential for managing data transfers where the size of a single transmission is limited.
  */
 package offgrid.geogram.bluetooth.other.comms;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Locale;
-import java.util.Objects;
 import java.util.Random;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32C;
 
 import offgrid.geogram.bluetooth.Bluecomm;
 import offgrid.geogram.core.Central;
+import offgrid.geogram.core.Log;
 
 public class BluePackage {
 
-    // Random two bytes generated as ID
+    private static final String TAG = "BluePackage";
+
+    // Random byte generated as ID, written as two hexadecimal characters
     private final String id;
 
     // the device id for this machine
@@ -52,8 +62,22 @@ public class BluePackage {
 
     private final DataType command;
 
-    // The length of text per parcel
-    private static final int TEXT_LENGTH_PER_PARCEL = Bluecomm.maxSizeOfMessages;
+    // The number of data bytes per parcel when the MTU is not known
+    private static final int TEXT_LENGTH_PER_PARCEL =
+            Bluecomm.maxSizeOfFrame - BlueFrame.PARCEL_HEADER_SIZE;
+
+    // Largest data a package received may carry, the header comes from
+    // another device and its buffer is created before any memory limit applies
+    public static final int MAX_DATA_SIZE = 64 * 1024;
+
+    // Parcels needed for the largest data on the smallest frames (default MTU),
+    // larger frames need fewer. Headers announcing more are refused.
+    public static final int MAX_PARCELS_RECEIVED =
+            (MAX_DATA_SIZE + TEXT_LENGTH_PER_PARCEL - 1) / TEXT_LENGTH_PER_PARCEL;
+
+    // The number of data bytes per parcel for this package,
+    // on the receiver it is learned from the first parcel that is not the last
+    private int textLengthPerParcel;
 
     // Total number of parcels in the message
     private final int messageParcelsTotal;
@@ -62,16 +86,46 @@ public class BluePackage {
     private int messageParcelCurrent;
 
     // The complete data message
-    private final String data;
+    private String data;
+
+    // All the bytes carried by the data parcels, in order. Each parcel
+    // is a view over this array, so the data is never split or joined.
+    private byte[] buffer = null;
+
+    // The individual data parcels (payload only, without frame header)
+    private ByteBuffer[] dataParcels;
 
-    // The individual data parcels
-    private String[] dataParcels;
+    // Header and parcels encoded once, shared by every device receiving them
+    private List<byte[]> frames = null;
+    private int framesSize = 0;
 
     // Timestamp when data transmission started
     private long timestamp;
     private long transmissionTimeLastActive;
 
-    private final String checksum;
+    // CRC32C of the bytes carried by the data parcels
+    private final int checksum;
+
+    // dictionary version used to compress the data, see BlueCompression
+    private final int compression;
+
+    // parity parcels sent after the data parcels, see BlueParity
+    private final int parityTotal;
+    private byte[][] parityParcels;
+
+    // small packages go on one frame, without a header
+    private final boolean singleFrame;
+    // parcels that were already asked again to the sender
+    private final BitSet parcelsRequested = new BitSet();
+
+    // parcels received so far, the checksum is calculated as they arrive
+    // in order so that completion is checked without going over all parcels
+    private final BitSet parcelsReceived = new BitSet();
+    private int parcelsReceivedTotal = 0;
+    private final CRC32C checksumReceived = new CRC32C();
+    private int checksumParcels = 0;    // parcels already added to the checksum
+    private boolean valid = false;
+    private int timesDiscarded = 0;     // parcels thrown away after a failed checksum
 
     // Indicates whether data is still being transferred
     private boolean isTransferring;
@@ -79,11 +133,42 @@ public class BluePackage {
 
     public static BluePackage createSender(String data) {
         DataType command = DataType.X;
-        return new BluePackage(command, data, true);
+        return new BluePackage(command, data, Bluecomm.maxSizeOfFrame, false, 0);
     }
 
     public static BluePackage createSender(DataType command, String data, String deviceId) {
-        return new BluePackage(command, data, true);
+        return new BluePackage(command, data, Bluecomm.maxSizeOfFrame, false, 0);
+    }
+
+    /**
+     * Creates a new BluePackage with parcels sized for the MTU of the receiver.
+     * @param maxFrameSize largest frame the receiving device accepts,
+     *                     see {@link Bluecomm#getMaxFrameSize(String)}
+     */
+    public static BluePackage createSender(DataType command, String data, String deviceId, int maxFrameSize) {
+        return createSender(command, data, deviceId, maxFrameSize, true);
+    }
+
+    /**
+     * Creates a new BluePackage with parcels sized for the MTU of the receiver.
+     * @param maxFrameSize largest frame the receiving device accepts
+     * @param compress     compress the data when it saves parcels, see {@link BlueCompression}
+     */
+    public static BluePackage createSender(DataType command, String data, String deviceId,
+                                           int maxFrameSize, boolean compress) {
+        return new BluePackage(command, data, maxFrameSize, compress, 0);
+    }
+
+    /**
+     * Creates a new BluePackage with parcels sized for the MTU of the receiver
+     * and parity parcels to rebuild the ones lost on the way.
+     * @param maxFrameSize largest frame the receiving device accepts
+     * @param compress     compress the data when it saves parcels, see {@link BlueCompression}
+     * @param lossRate     fraction of parcels lost on the link, picks the number of parity parcels
+     */
+    public static BluePackage createSender(DataType command, String data, String deviceId,
+                                           int maxFrameSize, boolean compress, double lossRate) {
+        return new BluePackage(command, data, maxFrameSize, compress, lossRate);
     }
 
     /**
@@ -91,110 +176,381 @@ public class BluePackage {
      * @param header is the initial message received from the other device
      * @return a new BluePackage instance for receiving data
      */
-    public static BluePackage createReceiver(String header) {
-        return new BluePackage(null, header, false);
+    public static BluePackage createReceiver(byte[] header) {
+        return new BluePackage(BlueFrame.decode(header));
     }
 
-    private BluePackage(DataType command, String data, boolean isSender) {
+    /**
+     * Creates a package again from the frames it was sent with, e.g. after
+     * they were kept on disk. The frames are reused as they are.
+     * @param frames the header followed by the parcels
+     * @return the package, or null when the frames don't make a valid package
+     */
+    public static BluePackage createFromFrames(List<byte[]> frames) {
+        if (frames == null || frames.isEmpty()) {
+            return null;
+        }
+        BluePackage item = createReceiver(frames.get(0));
+        if (item.isValidHeader() == false) {
+            return null;
+        }
+        try {
+            for (int i = 1; i < frames.size(); i++) {
+                item.receiveParcel(frames.get(i));
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (item.allParcelsReceivedAndValid() == false) {
+            return null;
+        }
+        item.setFrames(new ArrayList<>(frames));
+        return item;
+    }
+
+    private BluePackage(DataType command, String data, int maxFrameSize, boolean compress, double lossRate) {
         // we are sending this package to another device
-        if (isSender) {
-            if (data == null) {
-                throw new IllegalArgumentException("Data cannot be null");
+        if (data == null) {
+            throw new IllegalArgumentException("Data cannot be null");
+        }
+        if (maxFrameSize <= BlueFrame.PARCEL_HEADER_SIZE) {
+            throw new IllegalArgumentException("Frame size too small: " + maxFrameSize);
+        }
+        int lengthPerParcel = maxFrameSize - BlueFrame.PARCEL_HEADER_SIZE;
+        this.id = generateRandomId();
+        this.deviceId = Central.getInstance().getSettings().getIdDevice();
+        this.command = command;
+        this.data = data;
+        this.messageParcelCurrent = -1;
+        this.timestamp = System.currentTimeMillis();
+        this.ping();
+        this.isTransferring = true;
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        // fits in one write? then nothing else is needed
+        this.singleFrame = BlueFrame.getSingleSize(deviceId, bytes.length) <= maxFrameSize;
+        int compressionUsed = BlueCompression.NONE;
+        // larger data would not be decompressed by the other device
+        if (compress && singleFrame == false && bytes.length <= MAX_DATA_SIZE) {
+            byte[] compressed = BlueCompression.compress(bytes);
+            // only worth it when fewer parcels need to be sent
+            if (compressed != null && countParcels(compressed.length, lengthPerParcel)
+                    < countParcels(bytes.length, lengthPerParcel)) {
+                bytes = compressed;
+                compressionUsed = BlueCompression.CURRENT;
             }
-            this.id = generateRandomId();
-            this.deviceId = Central.getInstance().getSettings().getIdDevice();
-            this.command = command;
-            this.data = data;
+        }
+        this.compression = compressionUsed;
+        // parity payloads carry the length of the parcels on two extra bytes
+        int parity = lengthPerParcel > BlueParity.LENGTH_SIZE && singleFrame == false
+                ? BlueParity.choose(countParcels(bytes.length, lengthPerParcel), lossRate) : 0;
+        if (parity > 0) {
+            lengthPerParcel -= BlueParity.LENGTH_SIZE;
+        }
+        this.textLengthPerParcel = lengthPerParcel;
+        this.messageParcelsTotal = countParcels(bytes.length, lengthPerParcel);
+        this.checksum = calculateChecksum(bytes);
+        splitDataIntoParcels(bytes);
+        // all the parcels are here already
+        this.parcelsReceived.set(0, messageParcelsTotal);
+        this.parcelsReceivedTotal = messageParcelsTotal;
+        this.checksumParcels = messageParcelsTotal;
+        this.valid = true;
+        this.parityTotal = Math.min(parity, messageParcelsTotal);
+        this.parityParcels = BlueParity.encode(dataParcels, parityTotal);
+    }
+
+    private BluePackage(BlueFrame header) {
+        // we are receiving this package from someone outside
+        // expected format is a binary header, see BlueFrame
+        // Example (as text): 3F:003:A4GD:B:34343
+        this.singleFrame = header != null && header.isSingle();
+        if (header == null || (header.isHeader() == false && singleFrame == false)) {
+            // this header isn't valid, invalidate the whole package
+            validHeader = false;
+            id = null;
+            textLengthPerParcel = TEXT_LENGTH_PER_PARCEL;
+            messageParcelsTotal = 0;
+            dataParcels = null;
+            this.data = null;
             this.messageParcelCurrent = -1;
-            this.timestamp = System.currentTimeMillis();
-            this.ping();
-            this.isTransferring = true;
-            this.messageParcelsTotal = (int) Math.ceil((double) this.data.length() / TEXT_LENGTH_PER_PARCEL);
-            this.checksum = calculateChecksum(data);
-            splitDataIntoParcels();
+            this.command = DataType.NONE;
+            this.timestamp = -1;
+            this.checksum = 0;
+            this.compression = BlueCompression.NONE;
+            this.parityTotal = 0;
+            return;
+        }
+        this.id = header.getId();
+        // parcels can have any size up to the MTU, this is only informative
+        this.textLengthPerParcel = TEXT_LENGTH_PER_PARCEL;
+        if (singleFrame) {
+            // the data came on the same frame, see createFromFrames()
+            this.messageParcelsTotal = 1;
+            this.checksum = calculateChecksum(header.getPayload());
+            this.compression = BlueCompression.NONE;
+            this.parityTotal = 0;
         } else {
-            // we are receiving this package from someone outside
-            String[] parts = data.split(":");
-            // expected format:
-            // uid:parceltotal:datachecksum:commandId:deviceId
-            // Example:
-            // AA:003:A4GD:B:34343
-            if (parts.length != 5) {
-                // this header isn't valid, invalidate the whole package
-                validHeader = false;
-                id = null;
-                messageParcelsTotal = 0;
-                dataParcels = null;
-                this.data = null;
-                this.messageParcelCurrent = -1;
-                this.command = DataType.NONE;
-                this.timestamp = -1;
-                this.checksum = null;
-                return;
-            }
-            this.id = parts[0];
-            this.messageParcelsTotal = Integer.parseInt(parts[1]);
-            this.checksum = parts[2]; // don't calculate the checksum initially
-            this.dataParcels = new String[messageParcelsTotal];
+            this.messageParcelsTotal = header.getIndex();
+            this.checksum = header.getChecksum(); // verified when all parcels arrive
+            this.compression = header.getFlags() & BlueCompression.MASK;
+            this.parityTotal = BlueParity.fromLevel(header.getFlags() >> BlueParity.SHIFT);
+        }
+        this.parityParcels = new byte[parityTotal][];
+        if (!BlueCompression.isSupported(compression)) {
+            // compressed with a dictionary from a newer version of the app
+            validHeader = false;
+        }
+        if (messageParcelsTotal > MAX_PARCELS_RECEIVED) {
+            Log.e(TAG, "Package " + id + " is too large: " + messageParcelsTotal + " parcels");
+            validHeader = false;
+            this.dataParcels = null;
             this.data = null;
             this.messageParcelCurrent = -1;
-            // get the command type
-            this.command = DataType.valueOf(parts[3]);
-            // get the device id
-            this.deviceId = parts[4];
-            // setup the transmission time
-            this.timestamp = System.currentTimeMillis();
-            this.ping();
-            this.isTransferring = true;
+            this.command = header.getCommand();
+            this.timestamp = -1;
+            return;
+        }
+        this.dataParcels = new ByteBuffer[messageParcelsTotal];
+        this.data = null;
+        this.messageParcelCurrent = -1;
+        // get the command type
+        this.command = header.getCommand();
+        // get the device id
+        this.deviceId = header.getDeviceId();
+        // setup the transmission time
+        this.timestamp = System.currentTimeMillis();
+        this.ping();
+        this.isTransferring = true;
+        // a package without parcels is already complete
+        updateChecksum();
+        if (singleFrame) {
+            receiveParcel(false, 0, header.getFrame(),
+                    header.getPayloadOffset(), header.getPayloadLength());
         }
     }
 
 
 
+    private static int countParcels(int length, int lengthPerParcel) {
+        return (length + lengthPerParcel - 1) / lengthPerParcel;
+    }
+
     /**
-     * Splits the data into smaller parcels based on TEXT_LENGTH_PER_PARCEL.
-     * Each parcel will contain at most {@code TEXT_LENGTH_PER_PARCEL} characters.
+     * Flags written on the header: compression and number of parity parcels.
      */
-    private void splitDataIntoParcels() {
-        int dataLength = data.length();
-        dataParcels = new String[messageParcelsTotal];
+    private int getHeaderFlags() {
+        return compression | (BlueParity.toLevel(parityTotal) << BlueParity.SHIFT);
+    }
+
+    /**
+     * Splits the data into smaller parcels based on the MTU of the receiver.
+     * Each parcel will contain at most {@code textLengthPerParcel} bytes.
+     */
+    private void splitDataIntoParcels(byte[] bytes) {
+        buffer = bytes;
+        dataParcels = new ByteBuffer[messageParcelsTotal];
 
         for (int i = 0; i < messageParcelsTotal; i++) {
-            int start = i * TEXT_LENGTH_PER_PARCEL;
-            int end = Math.min(start + TEXT_LENGTH_PER_PARCEL, dataLength);
-            dataParcels[i] = data.substring(start, end);
+            int start = i * textLengthPerParcel;
+            int end = Math.min(start + textLengthPerParcel, bytes.length);
+            dataParcels[i] = view(start, end - start);
+        }
+    }
+
+    private ByteBuffer view(int offset, int length) {
+        return ByteBuffer.wrap(buffer, offset, length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies a parcel received to its place on the buffer.
+     * All parcels have the same size except the last one, so the buffer
+     * is only created when a parcel other than the last one arrives.
+     *
+     * @return false when the size of the parcel doesn't fit the package
+     */
+    private boolean storeParcel(int index, byte[] source, int sourceOffset, int length) {
+        boolean isLast = index == messageParcelsTotal - 1;
+        if (buffer == null && (isLast == false || messageParcelsTotal == 1)) {
+            // larger parcels than the package needs would pass the data limit
+            if ((long) (messageParcelsTotal - 1) * length >= MAX_DATA_SIZE) {
+                Log.e(TAG, "Parcel " + index + " of package " + id + " is too large: " + length);
+                return false;
+            }
+            textLengthPerParcel = length;
+            buffer = new byte[messageParcelsTotal * length];
+            // the last parcel may have arrived before, bring it inside
+            ByteBuffer last = dataParcels[messageParcelsTotal - 1];
+            if (last != null && parcelsReceived.get(messageParcelsTotal - 1)
+                    && storeParcel(messageParcelsTotal - 1, last) == false) {
+                unmarkReceived(messageParcelsTotal - 1);
+            }
+        }
+        if (buffer == null) {
+            // keep a copy of the last parcel until the size is known
+            dataParcels[index] = ByteBuffer.wrap(
+                    Arrays.copyOfRange(source, sourceOffset, sourceOffset + length));
+            return true;
         }
+        if (isLast ? length > textLengthPerParcel : length != textLengthPerParcel) {
+            Log.e(TAG, "Parcel " + index + " of package " + id + " has an invalid size: " + length);
+            dataParcels[index] = null;
+            return false;
+        }
+        int offset = index * textLengthPerParcel;
+        System.arraycopy(source, sourceOffset, buffer, offset, length);
+        dataParcels[index] = view(offset, length);
+        return true;
     }
 
     /**
-     * Receives a parcel and stores it in the appropriate slot based on its ID.
+     * Stores a parcel kept aside or rebuilt by the parity, these are never views.
+     */
+    private boolean storeParcel(int index, ByteBuffer payload) {
+        return storeParcel(index, payload.array(),
+                payload.arrayOffset() + payload.position(), payload.remaining());
+    }
+
+    /**
+     * Receives a parcel and stores it in the appropriate slot based on its index.
      *
-     * @param parcel The parcel received (format: "AA###:parcelText").
+     * @param parcel The parcel frame received (see {@link BlueFrame}).
      * @throws IllegalArgumentException If the parcel format is invalid or the ID does not match.
      */
-    public void receiveParcel(String parcel) {
-        this.ping();
-        String[] parts = parcel.split(":", 2);
-        if (parts.length != 2 || !parts[0].startsWith(id)) {
+    public void receiveParcel(byte[] parcel) {
+        receiveParcel(BlueFrame.decode(parcel));
+    }
+
+    /**
+     * Receives a parcel that was already decoded.
+     *
+     * @param parcel The decoded parcel frame.
+     * @throws IllegalArgumentException If the parcel format is invalid or the ID does not match.
+     */
+    public void receiveParcel(BlueFrame parcel) {
+        if (parcel == null || !parcel.isParcel() || !parcel.getId().equals(id)) {
             throw new IllegalArgumentException("Invalid parcel format or ID mismatch");
         }
+        receiveParcel((parcel.getFlags() & BlueFrame.FLAG_PARITY) != 0, parcel.getIndex(),
+                parcel.getFrame(), parcel.getPayloadOffset(), parcel.getPayloadLength());
+    }
+
+    /**
+     * Receives a parcel straight from the data written to our characteristic.
+     *
+     * @param parcel The reader positioned on a parcel of this package.
+     * @throws IllegalArgumentException If the parcel format is invalid or the ID does not match.
+     */
+    public void receiveParcel(BlueFrameReader parcel) {
+        if (parcel.getKind() != BlueFrameReader.Kind.PARCEL || !parcel.getId().equals(id)) {
+            throw new IllegalArgumentException("Invalid parcel format or ID mismatch");
+        }
+        receiveParcel(parcel.isParity(), parcel.getIndex(),
+                parcel.getData(), parcel.getPayloadOffset(), parcel.getPayloadLength());
+    }
+
+    private synchronized void receiveParcel(boolean isParity, int parcelIndex,
+                                            byte[] source, int offset, int length) {
+        this.ping();
+        if (dataParcels == null || valid) {
+            return;
+        }
+
+        if (isParity) {
+            if (parcelIndex >= 0 && parcelIndex < parityTotal) {
+                parityParcels[parcelIndex] = Arrays.copyOfRange(source, offset, offset + length);
+            }
+        } else if (parcelIndex >= 0 && parcelIndex < messageParcelsTotal
+                && parcelsReceived.get(parcelIndex) == false
+                && storeParcel(parcelIndex, source, offset, length)) {
+            markReceived(parcelIndex);
+        }
+        // rebuild what was lost without asking for it again
+        if (parityTotal > 0 && parcelsReceivedTotal < messageParcelsTotal
+                && BlueParity.recover(dataParcels, parityParcels) > 0) {
+            for (int i = parcelsReceived.nextClearBit(0); i < messageParcelsTotal;
+                 i = parcelsReceived.nextClearBit(i + 1)) {
+                if (dataParcels[i] != null && storeParcel(i, dataParcels[i])) {
+                    markReceived(i);
+                }
+            }
+        }
+        updateChecksum();
+    }
+
+    private void markReceived(int index) {
+        parcelsReceived.set(index);
+        parcelsReceivedTotal++;
+    }
+
+    private void unmarkReceived(int index) {
+        parcelsReceived.clear(index);
+        parcelsReceivedTotal--;
+    }
 
-        int parcelIndex = Integer.parseInt(parts[0].substring(id.length()));
-        if (parcelIndex >= 0 && parcelIndex < messageParcelsTotal) {
-            dataParcels[parcelIndex] = parts[1];
+    /**
+     * Adds to the checksum the parcels that arrived in order and, once
+     * all are there, compares it with the one written on the header.
+     */
+    private void updateChecksum() {
+        // the buffer doesn't exist yet when only the last parcel arrived
+        while (buffer != null && checksumParcels < messageParcelsTotal
+                && parcelsReceived.get(checksumParcels)) {
+            checksumReceived.update(dataParcels[checksumParcels].duplicate());
+            checksumParcels++;
+        }
+        if (parcelsReceivedTotal < messageParcelsTotal) {
+            return;
+        }
+        if ((int) checksumReceived.getValue() == checksum) {
+            // decode the text only once, this also checks the decompression
+            data = joinParcels();
+            valid = data != null;
+        }
+        if (valid == false) {
+            // something arrived damaged, start over so the package can be sent again
+            Log.e(TAG, "Invalid data received on package " + id + ", discarding the parcels");
+            Arrays.fill(dataParcels, null);
+            if (parityParcels != null) {
+                Arrays.fill(parityParcels, null);
+            }
+            parcelsReceived.clear();
+            parcelsReceivedTotal = 0;
+            checksumReceived.reset();
+            checksumParcels = 0;
+            timesDiscarded++;
         }
     }
 
     /**
-     * Generates a unique random ID using two bytes for each data transmission.
+     * Generates a unique random ID using one byte for each data transmission.
      *
-     * @return A unique 2-byte random ID as a hexadecimal string.
+     * @return A unique 1-byte random ID as a 2-character hexadecimal string.
      */
     public String generateRandomId() {
         Random random = new Random();
-        char firstChar = (char) ('A' + random.nextInt(26)); // Random letter A-Z
-        char secondChar = (char) ('A' + random.nextInt(26)); // Random letter A-Z
-        return "" + firstChar + secondChar;
+        return BlueFrame.byteToId((byte) random.nextInt(256));
+    }
+
+    /**
+     * Gets the dictionary version used to compress the data, 0 when not compressed.
+     */
+    public int getCompression() {
+        return compression;
+    }
+
+    /**
+     * Number of times the parcels received were discarded because
+     * the checksum failed, they then need to be received again.
+     */
+    public synchronized int getTimesDiscarded() {
+        return timesDiscarded;
+    }
+
+    /**
+     * Gets the number of parity parcels sent after the data parcels.
+     */
+    public int getParityTotal() {
+        return parityTotal;
     }
 
     public boolean isValidHeader() {
@@ -204,27 +560,101 @@ public class BluePackage {
     /**
      * Retrieves the next data parcel to send. Automatically increments the current parcel index.
      *
-     * @return The next parcel as a string, or {@code null} if all parcels have been sent.
+     * @return The next parcel as an encoded frame, or {@code null} if all parcels have been sent.
      */
-    public String getNextParcel() {
+    public byte[] getNextParcel() {
         this.ping();
+        if (singleFrame) {
+            // everything goes on the first frame
+            if (messageParcelCurrent == -1) {
+                messageParcelCurrent = messageParcelsTotal;
+                return BlueFrame.encodeSingle(id, command, deviceId, buffer);
+            }
+            return null;
+        }
         // first message is the header
         if (messageParcelCurrent == -1) {
             messageParcelCurrent++;
             // First parcel is the header with ID and total parcel count
-            return String.format(Locale.US, "%s:%03d:%s:%s:%s",
-                    id, messageParcelsTotal, checksum, command, deviceId);
+            return BlueFrame.encodeHeader(id, messageParcelsTotal, checksum, command, deviceId, getHeaderFlags());
             // next parcels are normal
         } else if (messageParcelCurrent < messageParcelsTotal) {
             // Subsequent parcels contain just the id, parcel number and data
-            String parcelId = String.format(Locale.US, "%s%03d", id, messageParcelCurrent);
-            String parcelData = dataParcels[messageParcelCurrent];
+            byte[] parcel = BlueFrame.encodeParcel(id, messageParcelCurrent,
+                    dataParcels[messageParcelCurrent], 0);
             messageParcelCurrent++;
-            return parcelId + ":" + parcelData  ;
+            return parcel;
+        } else if (messageParcelCurrent < messageParcelsTotal + parityTotal) {
+            // parity parcels go at the end
+            int index = messageParcelCurrent - messageParcelsTotal;
+            messageParcelCurrent++;
+            return BlueFrame.encodeParcel(id, index, parityParcels[index], BlueFrame.FLAG_PARITY);
         }
         return null;
     }
 
+    /**
+     * Gets the header and all the parcels of this package as frames ready
+     * to be written. They are encoded only once and shared by all the
+     * devices receiving the package, so they should never be modified.
+     *
+     * @return the frames, starting with the header
+     */
+    public synchronized List<byte[]> getFrames() {
+        if (frames == null && singleFrame) {
+            ArrayList<byte[]> result = new ArrayList<>(1);
+            result.add(BlueFrame.encodeSingle(id, command, deviceId, buffer));
+            setFrames(result);
+        }
+        if (frames == null) {
+            ArrayList<byte[]> result = new ArrayList<>(messageParcelsTotal + 1);
+            result.add(BlueFrame.encodeHeader(id, messageParcelsTotal, checksum, command, deviceId, getHeaderFlags()));
+            for (int i = 0; i < messageParcelsTotal; i++) {
+                result.add(BlueFrame.encodeParcel(id, i, dataParcels[i], 0));
+            }
+            for (int i = 0; i < parityTotal; i++) {
+                result.add(BlueFrame.encodeParcel(id, i, parityParcels[i], BlueFrame.FLAG_PARITY));
+            }
+            setFrames(result);
+        }
+        this.ping();
+        return frames;
+    }
+
+    private void setFrames(List<byte[]> result) {
+        frames = Collections.unmodifiableList(result);
+        framesSize = 0;
+        for (byte[] frame : result) {
+            framesSize += frame.length;
+        }
+    }
+
+    /**
+     * Estimates the bytes of memory used by the data of this package:
+     * the parcels, the parity, the decoded text and the encoded frames.
+     */
+    public synchronized int getMemorySize() {
+        int size = 0;
+        if (buffer != null) {
+            size += buffer.length;
+        } else if (dataParcels != null && messageParcelsTotal > 0
+                && dataParcels[messageParcelsTotal - 1] != null) {
+            // only the last parcel arrived, kept aside
+            size += dataParcels[messageParcelsTotal - 1].capacity();
+        }
+        if (parityParcels != null) {
+            for (byte[] parcel : parityParcels) {
+                if (parcel != null) {
+                    size += parcel.length;
+                }
+            }
+        }
+        if (data != null) {
+            size += data.length();
+        }
+        return size + framesSize;
+    }
+
     /**
      * Permits to send again this package
      */
@@ -239,11 +669,11 @@ public class BluePackage {
      * This is useful for retransmitting lost parcels during communication.
      *
      * @param index The index of the parcel to retrieve (1-based).
-     * @return The requested parcel as a string, or {@code null} if the index is invalid.
+     * @return The requested parcel as an encoded frame, or {@code null} if the index is invalid.
      */
-    public String getSpecificParcel(int index) {
-        if (index > 0 && index <= messageParcelsTotal) {
-            return dataParcels[index - 1];
+    public byte[] getSpecificParcel(int index) {
+        if (index > 0 && index <= messageParcelsTotal && dataParcels[index - 1] != null) {
+            return BlueFrame.encodeParcel(id, index - 1, dataParcels[index - 1], 0);
         }
         return null;
     }
@@ -254,20 +684,8 @@ public class BluePackage {
      *
      * @return {@code true} if all parcels are received, {@code false} otherwise.
      */
-    public boolean allParcelsReceivedAndValid() {
-        if (dataParcels == null) {
-            return false;
-        }
-
-        // it is false when there are still null sections on the array
-        if(!Arrays.stream(dataParcels).allMatch(Objects::nonNull)){
-            return false;
-        }
-
-        // fields should be complete now, but do they match the checksum?
-        String data = String.join("", dataParcels);;
-        String checksumReceived = calculateChecksum(data);
-        return checksumReceived.equals(this.checksum);
+    public synchronized boolean allParcelsReceivedAndValid() {
+        return valid;
     }
 
     /**
@@ -289,12 +707,12 @@ public class BluePackage {
     }
 
     /**
-     * Retrieves the length of each parcel.
+     * Retrieves the number of data bytes carried by each parcel.
      *
      * @return The parcel length as an integer.
      */
     public int getTextLengthPerParcel() {
-        return TEXT_LENGTH_PER_PARCEL;
+        return textLengthPerParcel;
     }
 
     /**
@@ -306,6 +724,10 @@ public class BluePackage {
         return messageParcelsTotal;
     }
 
+    public int getChecksum() {
+        return checksum;
+    }
+
     /**
      * Retrieves the current parcel index that is being processed.
      *
@@ -320,19 +742,38 @@ public class BluePackage {
      *
      * @return The full data message as a string, or null if parcels are missing.
      */
-    public String getData() {
-        if (!allParcelsReceivedAndValid()) {
+    public synchronized String getData() {
+        return data;
+    }
+
+    /**
+     * Concatenates the bytes of all parcels, decompresses them
+     * when needed and decodes them as text.
+     *
+     * @return the text or null when the data can't be decompressed
+     */
+    private String joinParcels() {
+        // the parcels are already in order on the buffer
+        int length = messageParcelsTotal == 0 ? 0
+                : (messageParcelsTotal - 1) * textLengthPerParcel
+                + dataParcels[messageParcelsTotal - 1].remaining();
+        byte[] bytes = buffer == null ? new byte[0] : buffer;
+        if (compression == BlueCompression.NONE) {
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+        bytes = BlueCompression.decompress(bytes, length, compression);
+        if (bytes == null) {
             return null;
         }
-        return String.join("", dataParcels);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 
     /**
      * Retrieves all data parcels as an array.
      *
-     * @return An array of strings representing the data parcels.
+     * @return A read-only view of the payload of each data parcel, null when missing.
      */
-    public String[] getDataParcels() {
+    public ByteBuffer[] getDataParcels() {
         return dataParcels;
     }
 
@@ -350,28 +791,16 @@ public class BluePackage {
     }
 
     /**
-     * Calculates a 4-letter checksum for the given data.
+     * Calculates the CRC32C of the bytes carried by the parcels.
+     * Unlike a sum of the characters, it also notices data in the wrong order.
      *
-     * @param data The input data for which to calculate the checksum.
-     * @return A 4-letter checksum.
+     * @param data The bytes sent on the data parcels.
+     * @return The checksum written on the header.
      */
-    public String calculateChecksum(String data) {
-        if (data == null || data.isEmpty()) {
-            throw new IllegalArgumentException("Data cannot be null or empty");
-        }
-
-        int sum = 0;
-        for (char c : data.toCharArray()) {
-            sum += c; // Add ASCII value of each character
-        }
-
-        // Reduce the sum to 4 letters
-        char[] checksum = new char[4];
-        for (int i = 0; i < 4; i++) {
-            checksum[i] = (char) ('A' + (sum % 26));
-            sum /= 26; // Shift to the next letter
-        }
-        return new String(checksum);
+    public static int calculateChecksum(byte[] data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        return (int) crc.getValue();
     }
 
     public DataType getCommand() {
@@ -385,16 +814,10 @@ public class BluePackage {
      * @return The index of the latest parcel (1-based), or -1 if no parcels are received.
      */
     private int getLatestParcel() {
-        if (dataParcels == null) {
+        if (dataParcels == null || parcelsReceived.isEmpty()) {
             return -1;
         }
-
-        for (int i = dataParcels.length - 1; i >= 0; i--) {
-            if (dataParcels[i] != null) {
-                return i + 1; // Convert to 1-based index
-            }
-        }
-        return -1; // No parcel found
+        return parcelsReceived.length(); // Convert to 1-based index
     }
 
 
@@ -403,19 +826,90 @@ public class BluePackage {
      * @return true when there is at least one gap existing
      */
     public boolean hasGaps() {
+        return getGaps().isEmpty() == false;
+    }
+
+    /**
+     * Lists the parcels that are missing before the latest one received,
+     * which means they were lost on the way and need to be asked again.
+     * @return indexes of the parcels missing, empty when there are no gaps
+     */
+    public BitSet getGaps() {
+        if (parityTotal > 0) {
+            return getGapsWithParity();
+        }
+        BitSet gaps = new BitSet();
         int latestParcel = getLatestParcel();
         for (int i = 0; i < latestParcel; i++) {
             if (dataParcels[i] == null) {
-                return true;
+                gaps.set(i);
+            }
+        }
+        return gaps;
+    }
+
+    /**
+     * With parity parcels, a missing parcel is only a gap when it
+     * can no longer be rebuilt: the parity of its group was received
+     * (so more parcels are missing there) or was lost itself,
+     * which we know when a later parity parcel arrived first.
+     */
+    private BitSet getGapsWithParity() {
+        BitSet gaps = new BitSet();
+        int latestParity = -1;
+        for (int i = 0; i < parityTotal; i++) {
+            if (parityParcels[i] != null) {
+                latestParity = i;
             }
         }
-        return false;
+        for (int i = 0; i < messageParcelsTotal; i++) {
+            if (dataParcels[i] != null) {
+                continue;
+            }
+            int group = i % parityTotal;
+            if (parityParcels[group] != null || group < latestParity) {
+                gaps.set(i);
+            }
+        }
+        return gaps;
+    }
+
+    /**
+     * Gaps that were not yet asked to the sender, to avoid asking
+     * for the same parcels again on every parcel that arrives.
+     */
+    public synchronized BitSet getGapsNotRequested() {
+        BitSet gaps = getGaps();
+        gaps.andNot(parcelsRequested);
+        return gaps;
+    }
+
+    /**
+     * Takes note of parcels that were asked again to the sender.
+     */
+    public synchronized void setRequested(BitSet parcels) {
+        parcelsRequested.or(parcels);
+    }
+
+    /**
+     * Lists all the data parcels not yet received, including the ones
+     * at the end that may still be on the way.
+     * @return indexes of the parcels missing
+     */
+    public synchronized BitSet getMissingParcels() {
+        BitSet missing = new BitSet();
+        if (dataParcels == null) {
+            return missing;
+        }
+        missing.set(0, messageParcelsTotal);
+        missing.andNot(parcelsReceived);
+        return missing;
     }
 
     /**
      * Finds the first gap (missing parcel) in the received data parcels.
      *
-     * @return The ID of the first missing parcel in the format "AA###", or {@code null} if there are no gaps.
+     * @return The ID of the first missing parcel in the format "3F###", or {@code null} if there are no gaps.
      */
     public String getFirstGapParcel() {
         if (dataParcels == null) {
@@ -435,20 +929,29 @@ public class BluePackage {
      * Retrieves a parcel by its index, given as a string in the format "000", "001", etc.
      *
      * @param indexString The index of the parcel as a zero-padded string.
-     * @return The parcel in the format "AA###:parcelText", or {@code null} if the index is invalid or the parcel is missing.
+     * @return The parcel as an encoded frame, or {@code null} if the index is invalid or the parcel is missing.
      */
-    public String getParcelByIndex(String indexString) {
+    public byte[] getParcelByIndex(String indexString) {
         try {
-            int index = Integer.parseInt(indexString);
-            if (index < 0 || index >= messageParcelsTotal || dataParcels[index] == null) {
-                return null; // Index out of bounds or parcel missing
-            }
-            return String.format(Locale.US, "%s%03d:%s", id, index, dataParcels[index]);
+            return getParcelByIndex(Integer.parseInt(indexString));
         } catch (NumberFormatException e) {
             return null; // Invalid index format
         }
     }
 
+    /**
+     * Retrieves a parcel by its index.
+     *
+     * @param index The index of the parcel.
+     * @return The parcel as an encoded frame, or {@code null} if the index is invalid or the parcel is missing.
+     */
+    public byte[] getParcelByIndex(int index) {
+        if (index < 0 || index >= messageParcelsTotal || dataParcels[index] == null) {
+            return null; // Index out of bounds or parcel missing
+        }
+        return BlueFrame.encodeParcel(id, index, dataParcels[index], 0);
+    }
+
 
     private void ping(){
         transmissionTimeLastActive = System.currentTimeMillis();
@@ -0,0 +1,162 @@
+package offgrid.geogram.bluetooth.other.comms;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Parity parcels that permit the receiver to rebuild lost parcels
+ * of a package without asking for them again.
+ * <p>
+ * With P parity parcels, the data parcels are split in P interleaved
+ * groups (parcel i belongs to group i % P) and parity parcel g is the
+ * XOR of all the parcels of group g. One lost parcel in each group can
+ * be rebuilt, so up to P parcels in a row can be lost.
+ * <p>
+ * Parcels may have different sizes, so each parity payload starts
+ * with the XOR of the lengths of its group (2 bytes) followed by the
+ * XOR of the data, padded with zeros to the longest parcel.
+ */
+public class BlueParity {
+
+    // bytes used on each parity payload to rebuild the length of a parcel
+    public static final int LENGTH_SIZE = 2;
+
+    // parity parcels supported, written on the header flags as a level 0-3
+    private static final int[] PARITY_COUNTS = {0, 1, 2, 4};
+
+    public static final int
+            MAX_PARITY = 4,
+            SHIFT = 2,          // header flags bits 2-3 hold the level
+            MASK = 0x03;
+
+    private BlueParity() {
+    }
+
+    /**
+     * Picks the number of parity parcels to protect a package
+     * against the rate of parcels lost on the link.
+     *
+     * @param parcels  number of data parcels of the package
+     * @param lossRate fraction of parcels being lost, from 0 to 1
+     * @return one of the supported counts (0, 1, 2 or 4)
+     */
+    public static int choose(int parcels, double lossRate) {
+        if (parcels <= 0 || lossRate < 0.02) {
+            return 0;
+        }
+        // twice the parcels expected to be lost, as losses come in bursts
+        double needed = Math.ceil(parcels * lossRate * 2);
+        for (int count : PARITY_COUNTS) {
+            if (count >= needed && count > 0) {
+                return Math.min(count, parcels);
+            }
+        }
+        return Math.min(MAX_PARITY, parcels);
+    }
+
+    /**
+     * Converts a number of parity parcels to the level written on the header.
+     */
+    public static int toLevel(int count) {
+        for (int level = 0; level < PARITY_COUNTS.length; level++) {
+            if (PARITY_COUNTS[level] >= count) {
+                return level;
+            }
+        }
+        return PARITY_COUNTS.length - 1;
+    }
+
+    /**
+     * Converts the level written on the header to a number of parity parcels.
+     */
+    public static int fromLevel(int level) {
+        return PARITY_COUNTS[level & MASK];
+    }
+
+    /**
+     * Creates the parity parcels for a list of data parcels.
+     *
+     * @param data  payload of each data parcel
+     * @param count number of parity parcels to create
+     * @return the payload of each parity parcel
+     */
+    public static byte[][] encode(ByteBuffer[] data, int count) {
+        byte[][] result = new byte[count][];
+        for (int group = 0; group < count; group++) {
+            int longest = 0;
+            for (int i = group; i < data.length; i += count) {
+                longest = Math.max(longest, data[i].remaining());
+            }
+            byte[] parity = new byte[LENGTH_SIZE + longest];
+            int lengths = 0;
+            for (int i = group; i < data.length; i += count) {
+                lengths ^= data[i].remaining();
+                xorInto(parity, data[i]);
+            }
+            parity[0] = (byte) (lengths >> 8);
+            parity[1] = (byte) lengths;
+            result[group] = parity;
+        }
+        return result;
+    }
+
+    /**
+     * Rebuilds the data parcels that are missing (null) when they
+     * are the only one missing in their group and the parity of
+     * that group was received.
+     *
+     * @param data   payload of each data parcel, null when missing
+     * @param parity payload of each parity parcel, null when missing
+     * @return number of parcels rebuilt
+     */
+    public static int recover(ByteBuffer[] data, byte[][] parity) {
+        int count = parity.length;
+        int recovered = 0;
+        for (int group = 0; group < count; group++) {
+            if (parity[group] == null) {
+                continue;
+            }
+            int missing = -1;
+            boolean tooManyMissing = false;
+            for (int i = group; i < data.length; i += count) {
+                if (data[i] != null) {
+                    continue;
+                }
+                if (missing != -1) {
+                    tooManyMissing = true;
+                    break;
+                }
+                missing = i;
+            }
+            if (missing == -1 || tooManyMissing) {
+                continue;
+            }
+            byte[] result = parity[group].clone();
+            int length = ((result[0] & 0xFF) << 8) | (result[1] & 0xFF);
+            for (int i = group; i < data.length; i += count) {
+                if (i == missing) {
+                    continue;
+                }
+                length ^= data[i].remaining();
+                xorInto(result, data[i]);
+            }
+            if (length < 0 || length > result.length - LENGTH_SIZE) {
+                continue;
+            }
+            byte[] rebuilt = new byte[length];
+            System.arraycopy(result, LENGTH_SIZE, rebuilt, 0, length);
+            data[missing] = ByteBuffer.wrap(rebuilt);
+            recovered++;
+        }
+        return recovered;
+    }
+
+    /**
+     * Applies XOR of the data over the parity, after the length bytes.
+     */
+    private static void xorInto(byte[] parity, ByteBuffer data) {
+        int position = data.position();
+        for (int i = 0; i < data.remaining() && LENGTH_SIZE + i < parity.length; i++) {
+            parity[LENGTH_SIZE + i] ^= data.get(position + i);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package offgrid.geogram.bluetooth.other.comms;
 
+import offgrid.geogram.wifi.comm.DeliveryPriority;
+
 /**
  * This is used when writing bluetooth messages.
  * Each message is placed on a queue waiting for
@@ -7,24 +9,34 @@ package offgrid.geogram.bluetooth.other.comms;
  */
 public class BlueQueueParcel {
     private final String macAddress;
-    private final String data;
+    private final byte[] data;
     private final long timestamp;
+    private final DeliveryPriority priority;
+
+    public BlueQueueParcel(String macAddress, byte[] data) {
+        this(macAddress, data, DeliveryPriority.NORMAL);
+    }
 
-    public BlueQueueParcel(String macAddress, String data) {
+    public BlueQueueParcel(String macAddress, byte[] data, DeliveryPriority priority) {
         this.macAddress = macAddress;
         this.data = data;
         this.timestamp = System.currentTimeMillis();
+        this.priority = priority;
     }
 
     public String getMacAddress() {
         return macAddress;
     }
 
-    public String getData() {
+    public byte[] getData() {
         return data;
     }
 
     public long getTimestamp() {
         return timestamp;
     }
+
+    public DeliveryPriority getPriority() {
+        return priority;
+    }
 }
@@ -2,13 +2,14 @@ package offgrid.geogram.bluetooth.watchdog;
 
 import android.content.Context;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import offgrid.geogram.bluetooth.BlueQueueSending;
-import offgrid.geogram.bluetooth.Bluecomm;
+import offgrid.geogram.bluetooth.BlueRttEstimator;
 import offgrid.geogram.bluetooth.eddystone.DeviceFinder;
-import offgrid.geogram.bluetooth.other.comms.BlueCommands;
 import offgrid.geogram.bluetooth.other.comms.BluePackage;
 import offgrid.geogram.bluetooth.other.comms.DataType;
-import offgrid.geogram.core.Central;
 import offgrid.geogram.core.Log;
 import offgrid.geogram.devices.DeviceReachable;
 import offgrid.geogram.devices.chat.ChatDatabaseWithDevice;
@@ -30,49 +31,90 @@ public class EventBluetoothAcknowledgementReceived extends EventAction {
 
     @Override
     public void action(Object... data) {
-        // object data[0] is of type String. e.g. >ACK:DEVICEID:TG:
-        String text = (String) data[0];
-        Log.i(TAG, "Ack received: " + text);
-        // break into useful parts
-        String[] parts = text.split(":");
-        if (parts.length != 3) {
-            Log.e(TAG, "Invalid ack received: " + text);
-            return;
-        }
-        String deviceId = parts[1];
-        String messageId = parts[2];
-
-        // get the packageSent with this ID
-        BluePackage packageSent = BlueQueueSending.getInstance(context).packagesToSend.get(messageId);
-
-        if (packageSent == null) {
-            Log.e(TAG, "Package not found: " + messageId);
-            return;
-        }
+        // data[0] is the id of the device confirming, data[1] the list of package ids,
+        // data[2] when present the milliseconds the first package was held there
+        String deviceId = (String) data[0];
+        @SuppressWarnings("unchecked")
+        List<String> packageIds = (List<String>) data[1];
+        long timeHeld = data.length > 2 ? (Long) data[2] : -1;
+        Log.i(TAG, "Ack received from " + deviceId + ": " + packageIds);
 
-        // only handle C commands (direct chat)
-        if (packageSent.getCommand().equals(DataType.C) == false) {
-            return;
-        }
+        // the messages of that device are loaded and saved once for the whole list
+        ChatMessages deviceMessages = null;
+        ArrayList<ChatMessage> delivered = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        String macAddress = getMacAddress(deviceId);
+        for (int i = 0; i < packageIds.size(); i++) {
+            String messageId = packageIds.get(i);
+            long elapsed = macAddress == null ? -1
+                    : BlueQueueSending.getInstance(context).takeRoundTrip(macAddress, messageId, now);
+            // only the first package has a known time held by the other device
+            if (i == 0 && timeHeld >= 0) {
+                addRttSample(macAddress, elapsed, timeHeld);
+            }
 
-        // use the timestamp as id
-        long timestamp = packageSent.getTimestamp();
+            // get the packageSent with this ID
+            BluePackage packageSent = BlueQueueSending.getInstance(context).packagesToSend.get(messageId);
+            if (packageSent == null) {
+                Log.e(TAG, "Package not found: " + messageId);
+                continue;
+            }
 
-        // iterate to find all related messages from that device Id
-        ChatMessages deviceMessages =
-                ChatDatabaseWithDevice.getInstance(context).getMessages(deviceId);
+            // only handle C commands (direct chat)
+            if (packageSent.getCommand().equals(DataType.C) == false) {
+                continue;
+            }
 
-        ChatMessage chatMessage = deviceMessages.getMessage(timestamp, packageSent.getData());
-        if (chatMessage == null) {
-            Log.e(TAG, "Message not found: " + packageSent.getData());
+            if (deviceMessages == null) {
+                deviceMessages = ChatDatabaseWithDevice.getInstance(context).getMessages(deviceId);
+            }
+            // use the timestamp as id
+            ChatMessage chatMessage = deviceMessages.getMessage(
+                    packageSent.getTimestamp(), packageSent.getData());
+            if (chatMessage == null) {
+                Log.e(TAG, "Message not found: " + packageSent.getData());
+                continue;
+            }
+            // make the changes
+            chatMessage.setDelivered(true);
+            delivered.add(chatMessage);
+        }
+        if (delivered.isEmpty()) {
             return;
         }
-        // make the changes
-        chatMessage.setDelivered(true);
         // save it to disk
         ChatDatabaseWithDevice.getInstance(context).saveToDisk(deviceId, deviceMessages);
-        Log.i(TAG, "Message marked as delivered: " + packageSent.getData());
+        Log.i(TAG, delivered.size() + " message(s) marked as delivered to " + deviceId);
         // inform that the screen can be updated
-        EventControl.startEvent(EventType.MESSAGE_DIRECT_UPDATE, chatMessage);
+        for (ChatMessage chatMessage : delivered) {
+            EventControl.startEvent(EventType.MESSAGE_DIRECT_UPDATE, chatMessage);
+        }
+    }
+
+    /**
+     * Gets the latest MAC address of a device, or null when not known.
+     */
+    private String getMacAddress(String deviceId) {
+        DeviceReachable device = DeviceFinder.getInstance(context).getDeviceMap().get(deviceId);
+        return device == null ? null : device.getMacAddress();
+    }
+
+    /**
+     * Teaches the estimator how long this device takes to answer.
+     * Acknowledgements are held on purpose by the other device, that
+     * part is not the link and is taken out.
+     *
+     * @param elapsed  time from the last frame sent to the acknowledgement
+     * @param timeHeld time the other device held the acknowledgement
+     */
+    private void addRttSample(String macAddress, long elapsed, long timeHeld) {
+        if (macAddress == null || elapsed < 0 || elapsed > BlueRttEstimator.timeoutMaximum) {
+            return;
+        }
+        // a clock step on either side could make it look negative
+        if (timeHeld > elapsed) {
+            return;
+        }
+        BlueRttEstimator.getInstance().addSample(macAddress, elapsed - timeHeld);
     }
 }
@@ -2,11 +2,8 @@ package offgrid.geogram.bluetooth.watchdog;
 
 import android.content.Context;
 
-import offgrid.geogram.bluetooth.Bluecomm;
+import offgrid.geogram.bluetooth.BlueAckBatcher;
 import offgrid.geogram.bluetooth.eddystone.DeviceFinder;
-import offgrid.geogram.bluetooth.other.comms.BlueCommands;
-import offgrid.geogram.bluetooth.other.comms.BluePackage;
-import offgrid.geogram.core.Central;
 import offgrid.geogram.core.Log;
 import offgrid.geogram.devices.DeviceReachable;
 import offgrid.geogram.events.EventAction;
@@ -23,27 +20,20 @@ public class EventBluetoothPackageReceived extends EventAction {
 
     @Override
     public void action(Object... data) {
-    // object data[0] is the package of type BluePackage
-    BluePackage packageReceived = (BluePackage) data[0];
-    Log.i(TAG, "Package received: " + packageReceived.getId());
-
-    // send back an acknowledgement that the package was received
-    String messageText = BlueCommands.oneLineAcknowledgement
-            + Central.getInstance().getSettings().getIdDevice()
-            + ":"
-            + packageReceived.getId();
+    // data[0] is the id of the package, data[1] the id of the device sending it
+    String packageId = (String) data[0];
+    String senderId = (String) data[1];
+    Log.i(TAG, "Package received: " + packageId);
 
     // MAC address might have changes since this is dynamic
-    String senderId = packageReceived.getDeviceId();
     DeviceReachable device = DeviceFinder.getInstance(context).getDeviceMap().get(senderId);
     // is the device still within our reach?
     if(device == null){
         Log.e(TAG, "Device not found: " + senderId);
         return;
     }
-    // send to the device with the last-known MAC address
-    String macAddress = device.getMacAddress();
-    Bluecomm.getInstance(context).writeData(macAddress, messageText);
-    Log.i(TAG, "Sent acknowledgement of received message: " + messageText);
+    // acknowledge to the last-known MAC address, together with
+    // other packages received meanwhile or inside the next frame
+    BlueAckBatcher.getInstance(context).add(device.getMacAddress(), packageId);
     }
 }
@@ -28,7 +28,7 @@ public class WatchDogRestartGATT {
     }
 
     /**
-     * Returns the singleton instance of the WatchDogMissingParcels.
+     * Returns the singleton instance of the WatchDogRestartGATT.
      *
      * @return The singleton instance.
      */
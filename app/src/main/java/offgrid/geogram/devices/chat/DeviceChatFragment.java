@@ -22,6 +22,8 @@ import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 
 import offgrid.geogram.R;
+import offgrid.geogram.bluetooth.BlueRateController;
+import offgrid.geogram.bluetooth.Bluecomm;
 import offgrid.geogram.bluetooth.eddystone.DeviceFinder;
 import offgrid.geogram.bluetooth.other.comms.BluePackage;
 import offgrid.geogram.bluetooth.other.comms.DataType;
@@ -131,15 +133,20 @@ public class DeviceChatFragment extends Fragment {
                 }
 
                 // Create the data package
+                String macAddress = deviceUpdated.getMacAddress();
                 BluePackage packageToSend = BluePackage.createSender(
                         // specific type C for chatting
-                        DataType.C, messageToSend.getMessage(), deviceId
+                        DataType.C, messageToSend.getMessage(), deviceId,
+                        // parcels as large as the MTU of that device permits
+                        Bluecomm.getInstance(this.getContext()).getMaxFrameSize(macAddress),
+                        // parity parcels according to the losses seen on that link
+                        true, BlueRateController.getInstance().getLossRate(macAddress)
                 );
                 // repeat the timestamp to permit finding this message again
                 packageToSend.setTimestamp(messageToSend.getTimestamp());
 
                 // send the package to the device
-                sendPackageToDevice(deviceUpdated.getMacAddress(), packageToSend, this.getContext());
+                sendPackageToDevice(macAddress, packageToSend, this.getContext());
 
                 requireActivity().runOnUiThread(() -> {
                     messageInput.setText("");
@@ -0,0 +1,89 @@
+package offgrid.grid.geogram;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import offgrid.geogram.bluetooth.BlueDestinationQueue;
+import offgrid.geogram.bluetooth.other.comms.BlueQueueParcel;
+import offgrid.geogram.wifi.comm.DeliveryPriority;
+
+public class BlueDestinationQueueTest {
+
+    private static final String MAC = "AA:BB:CC:DD:EE:FF";
+
+    private static byte[] data(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testDuplicateIndex() {
+        BlueDestinationQueue queue = new BlueDestinationQueue(MAC);
+        for (int i = 0; i < 1000; i++) {
+            queue.add(new BlueQueueParcel(MAC, data("parcel" + i)));
+        }
+        assertEquals(1000, queue.size());
+        // a copy of the same content is found
+        assertTrue(queue.contains(data("parcel500")));
+        assertFalse(queue.contains(data("parcel1000")));
+
+        // the same data twice stays on the index until both leave
+        queue.add(new BlueQueueParcel(MAC, data("parcel0")));
+        long now = System.currentTimeMillis();
+        while (!queue.isEmpty()) {
+            BlueQueueParcel item = queue.peek(now);
+            queue.remove(item);
+            if (queue.isEmpty()) {
+                assertFalse(queue.contains(item.getData()));
+            }
+        }
+        assertFalse(queue.contains(data("parcel0")));
+        assertFalse(queue.contains(data("parcel500")));
+    }
+
+    @Test
+    public void testPriority() {
+        BlueDestinationQueue queue = new BlueDestinationQueue(MAC);
+        queue.add(new BlueQueueParcel(MAC, data("bulk"), DeliveryPriority.LOW));
+        queue.add(new BlueQueueParcel(MAC, data(">ACK:QB"), DeliveryPriority.HIGH));
+
+        long now = System.currentTimeMillis();
+        assertEquals(">ACK:QB", new String(queue.peek(now).getData(), StandardCharsets.UTF_8));
+        queue.remove(queue.peek(now));
+        assertEquals("bulk", new String(queue.peek(now).getData(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testDrain() {
+        BlueDestinationQueue queue = new BlueDestinationQueue(MAC);
+        queue.add(new BlueQueueParcel(MAC, data("parcel0"), DeliveryPriority.NORMAL));
+        queue.add(new BlueQueueParcel(MAC, data("parcel1"), DeliveryPriority.NORMAL));
+        queue.add(new BlueQueueParcel(MAC, data(">PING:2A1A78"), DeliveryPriority.HIGH));
+
+        // everything leaves at once, control commands first
+        ArrayList<BlueQueueParcel> parcels = new ArrayList<>();
+        assertEquals(3, queue.drainTo(System.currentTimeMillis(), parcels));
+        assertEquals(">PING:2A1A78", new String(parcels.get(0).getData(), StandardCharsets.UTF_8));
+        assertEquals("parcel0", new String(parcels.get(1).getData(), StandardCharsets.UTF_8));
+        assertEquals("parcel1", new String(parcels.get(2).getData(), StandardCharsets.UTF_8));
+        assertTrue(queue.isEmpty());
+        assertFalse(queue.contains(data("parcel0")));
+    }
+
+    @Test
+    public void testParking() {
+        BlueDestinationQueue queue = new BlueDestinationQueue(MAC);
+        long now = System.currentTimeMillis();
+        for (int i = 1; i < BlueDestinationQueue.failuresToPark; i++) {
+            assertFalse(queue.onWriteError(now));
+        }
+        assertTrue(queue.onWriteError(now));
+        assertTrue(queue.isParked(now));
+        assertFalse(queue.isParked(now + BlueDestinationQueue.timeParkedMinimum));
+
+        queue.unpark();
+        assertFalse(queue.isParked(now));
+    }
+}
@@ -0,0 +1,74 @@
+package offgrid.grid.geogram;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import offgrid.geogram.bluetooth.BlueDuplicateFilter;
+import offgrid.geogram.bluetooth.other.comms.BlueFrame;
+import offgrid.geogram.bluetooth.other.comms.BlueFrameReader;
+import offgrid.geogram.bluetooth.other.comms.DataType;
+
+public class BlueDuplicateFilterTest {
+
+    private static final String
+            MAC_A = "AA:BB:CC:DD:EE:FF",
+            MAC_B = "11:22:33:44:55:66";
+
+    @Test
+    public void testExpiry() {
+        BlueDuplicateFilter filter = new BlueDuplicateFilter(1000);
+        byte[] frame = BlueFrame.encodeParcel("3F", 1, new byte[]{1, 2, 3}, 0);
+        long key = BlueDuplicateFilter.hash(MAC_A, frame);
+        long now = 0;
+
+        assertFalse(filter.contains(key, now));
+        filter.add(key, now);
+        assertTrue(filter.contains(key, now + 500));
+        // the same frame from another device is not a copy
+        assertFalse(filter.contains(BlueDuplicateFilter.hash(MAC_B, frame), now));
+
+        // still remembered on the previous generation
+        assertTrue(filter.contains(key, now + 1000));
+        // forgotten after two windows
+        assertFalse(filter.contains(key, now + 2000));
+        assertEquals(0, filter.size());
+    }
+
+    @Test
+    public void testSingleWithOtherAcks() {
+        byte[] single = BlueFrame.encodeSingle("40", DataType.C, "2A1A78",
+                "hello".getBytes(StandardCharsets.UTF_8));
+        BlueFrameReader reader = new BlueFrameReader();
+        reader.read(single);
+        long plain = BlueDuplicateFilter.hashSingle(MAC_A, reader);
+        reader.read(BlueFrame.addAcks(single, Arrays.asList("3F", "4B")));
+        long withAcks = BlueDuplicateFilter.hashSingle(MAC_A, reader);
+        reader.read(BlueFrame.addAcks(single, Collections.singletonList("5C")));
+
+        // written again with other acknowledgements, still the same package
+        assertEquals(plain, withAcks);
+        assertEquals(plain, BlueDuplicateFilter.hashSingle(MAC_A, reader));
+        assertNotEquals(plain, BlueDuplicateFilter.hashSingle(MAC_B, reader));
+    }
+
+    @Test
+    public void testForgetGroup() {
+        BlueDuplicateFilter filter = new BlueDuplicateFilter(1000);
+        long fromA = BlueDuplicateFilter.hash(MAC_A, BlueFrame.encodeParcel("3F", 1, new byte[]{1}, 0));
+        long fromB = BlueDuplicateFilter.hash(MAC_B, BlueFrame.encodeParcel("3F", 1, new byte[]{1}, 0));
+        long single = BlueDuplicateFilter.hash(MAC_A, new byte[]{(byte) 0xA0, 1, 2});
+        filter.add(fromA, 1, 0);
+        filter.add(fromB, 2, 0);
+        filter.add(single, 0);
+
+        // a damaged package only forgets its own parcels
+        filter.forget(1);
+        assertFalse(filter.contains(fromA, 10));
+        assertTrue(filter.contains(fromB, 10));
+        assertTrue(filter.contains(single, 10));
+    }
+}
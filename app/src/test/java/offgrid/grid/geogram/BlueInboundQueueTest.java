@@ -0,0 +1,69 @@
+package offgrid.grid.geogram;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import offgrid.geogram.bluetooth.BlueInboundQueue;
+
+public class BlueInboundQueueTest {
+
+    private static final String MAC = "AA:BB:CC:DD:EE:FF";
+
+    @Test
+    public void testOrderAndCopy() throws InterruptedException {
+        List<Byte> received = Collections.synchronizedList(new ArrayList<>());
+        List<String> threads = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(10);
+        BlueInboundQueue queue = new BlueInboundQueue(16, (macAddress, data) -> {
+            received.add(data[0]);
+            threads.add(Thread.currentThread().getName());
+            done.countDown();
+        });
+
+        byte[] value = new byte[1];
+        for (byte i = 0; i < 10; i++) {
+            value[0] = i;
+            // the caller may reuse its array, the queue keeps a copy
+            assertTrue(queue.offer(MAC, value));
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (byte i = 0; i < 10; i++) {
+            assertEquals(i, (byte) received.get(i));
+        }
+        // always processed by the same thread
+        assertEquals(1, threads.stream().distinct().count());
+        queue.stop();
+    }
+
+    @Test
+    public void testFullQueueRefuses() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        BlueInboundQueue queue = new BlueInboundQueue(2, (macAddress, data) -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        // the first write is taken by the thread, which then stays busy
+        assertTrue(queue.offer(MAC, new byte[]{0}));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(queue.offer(MAC, new byte[]{1}));
+        assertTrue(queue.offer(MAC, new byte[]{2}));
+        assertFalse(queue.offer(MAC, new byte[]{3}));
+        assertEquals(2, queue.size());
+        assertEquals(1, queue.getRefused());
+
+        release.countDown();
+        queue.stop();
+    }
+}
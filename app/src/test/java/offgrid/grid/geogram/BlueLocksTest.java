@@ -0,0 +1,26 @@
+package offgrid.grid.geogram;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import offgrid.geogram.bluetooth.BlueLocks;
+
+public class BlueLocksTest {
+
+    @Test
+    public void testScanWaitsForConnections() throws InterruptedException {
+        BlueLocks locks = BlueLocks.getInstance();
+        assertTrue(locks.lockAdapterForConnection(0));
+        // connections share the adapter, a scan doesn't
+        assertTrue(locks.lockAdapterForConnection(0));
+        assertFalse(locks.lockAdapterForScan(10));
+        locks.unlockAdapterForConnection();
+        // released by the thread of the GATT callback
+        Thread callback = new Thread(locks::unlockAdapterForConnection);
+        callback.start();
+        callback.join();
+        assertTrue(locks.lockAdapterForScan(0));
+        assertFalse(locks.lockAdapterForConnection(0));
+        locks.unlockAdapterForScan();
+    }
+}
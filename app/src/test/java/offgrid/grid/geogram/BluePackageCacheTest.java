@@ -0,0 +1,80 @@
+package offgrid.grid.geogram;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import offgrid.geogram.bluetooth.BluePackageCache;
+import offgrid.geogram.bluetooth.other.comms.BluePackage;
+import offgrid.geogram.bluetooth.other.comms.DataType;
+import offgrid.geogram.core.Central;
+import offgrid.geogram.settings.SettingsLoader;
+
+public class BluePackageCacheTest {
+
+    @Before
+    public void setUp() {
+        Central.debugForLocalTests = true;
+        Central.getInstance().setSettings(SettingsLoader.createDefaultSettings(null));
+    }
+
+    private static BluePackage sender(String text) {
+        return BluePackage.createSender(DataType.C, text, "2A1A78", 20);
+    }
+
+    @Test
+    public void testSpillToDisk() throws Exception {
+        File folder = Files.createTempDirectory("packages-sent").toFile();
+        BluePackage first = sender("HelloWorldThisIsATestThatGoesAround");
+        first.setTimestamp(1234);
+        // the frames count as well, they are encoded when kept
+        first.getFrames();
+        int size = first.getMemorySize();
+        BluePackageCache cache = new BluePackageCache(size + size / 2, folder);
+
+        cache.put(first);
+        BluePackage second = sender("AndShouldBreakToMultipleMessagesOK?");
+        // sharing the id would replace the first package
+        while (second.getId().equals(first.getId())) {
+            second = sender("AndShouldBreakToMultipleMessagesOK?");
+        }
+        cache.put(second);
+        // only one fits in memory, the oldest went to disk
+        assertEquals(1, cache.size());
+        assertTrue(cache.getBytes() <= size + size / 2);
+        assertTrue(new File(folder, first.getId() + ".bin").exists());
+        assertTrue(cache.containsKey(first.getId()));
+
+        // a late request reads it back with the same frames
+        BluePackage restored = cache.get(first.getId());
+        assertNotNull(restored);
+        assertEquals(first.getData(), restored.getData());
+        assertEquals(1234, restored.getTimestamp());
+        assertEquals(first.getFrames().size(), restored.getFrames().size());
+        for (int i = 0; i < first.getFrames().size(); i++) {
+            assertArrayEquals(first.getFrames().get(i), restored.getFrames().get(i));
+        }
+        assertArrayEquals(first.getParcelByIndex(1), restored.getParcelByIndex(1));
+        // and the second one left the memory in turn
+        assertTrue(new File(folder, second.getId() + ".bin").exists());
+
+        // ids from other devices never leave the folder
+        File outside = new File(folder.getParentFile(), folder.getName() + ".bin");
+        assertTrue(outside.createNewFile());
+        String escape = "../" + folder.getName();
+        assertFalse(cache.containsKey(escape));
+        assertNull(cache.get(escape));
+        cache.remove(escape);
+        assertTrue(outside.exists());
+        assertNull(cache.get("-1"));
+        assertTrue(outside.delete());
+
+        cache.clear();
+        assertFalse(cache.containsKey(first.getId()));
+        assertEquals(0, folder.listFiles().length);
+        assertTrue(folder.delete());
+    }
+}
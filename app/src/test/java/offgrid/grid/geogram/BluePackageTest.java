@@ -1,13 +1,34 @@
 package offgrid.grid.geogram;
 
+import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.List;
+
+import offgrid.geogram.bluetooth.other.comms.BlueCompression;
+import offgrid.geogram.bluetooth.other.comms.BlueFrame;
+import offgrid.geogram.bluetooth.other.comms.BlueFrameReader;
+import offgrid.geogram.bluetooth.other.comms.BlueNack;
 import offgrid.geogram.bluetooth.other.comms.BluePackage;
 import offgrid.geogram.bluetooth.other.comms.DataType;
+import offgrid.geogram.core.Central;
+import offgrid.geogram.settings.SettingsLoader;
 
 public class BluePackageTest {
 
+    @Before
+    public void setUp() {
+        Central.debugForLocalTests = true;
+        Central.getInstance().setSettings(SettingsLoader.createDefaultSettings(null));
+    }
+
+    private static byte[] parcel(String id, int index, String text) {
+        return BlueFrame.encodeParcel(id, index, text.getBytes(StandardCharsets.UTF_8), 0);
+    }
+
     @Test
     public void testRandomId() {
         BluePackage sender = BluePackage.createSender("HelloWorldThisIsATest");
@@ -23,43 +44,140 @@ public class BluePackageTest {
 
         assertNotNull(sender);
         assertEquals("HelloWorldThisIsATest", sender.getData());
-        assertEquals(10, sender.getTextLengthPerParcel());
-        assertEquals(3, sender.getMessageParcelsTotal()); // Total parcels = ceil(20 / 15)
+        assertEquals(16, sender.getTextLengthPerParcel());
+        assertEquals(2, sender.getMessageParcelsTotal()); // Total parcels = ceil(21 / 16)
         assertTrue(sender.isTransferring());
     }
 
+    @Test
+    public void testCreateSenderWithMtu() {
+        String text = "HelloWorldThisIsATestThatGoesAroundAndShouldBreakToMultipleMessagesOK?";
+        // MTU of 185 leaves 182 bytes for each frame
+        BluePackage sender = BluePackage.createSender(DataType.C, text, "2A1A78", 182);
+        assertEquals(178, sender.getTextLengthPerParcel());
+        assertEquals(1, sender.getMessageParcelsTotal());
+
+        // it fits in one write, so there is no header before it
+        byte[] single = sender.getNextParcel();
+        assertNull(sender.getNextParcel());
+        assertTrue(BlueFrame.decode(single).isSingle());
+        BluePackage receiver = BluePackage.createReceiver(single);
+        assertTrue(receiver.allParcelsReceivedAndValid());
+        assertEquals(text, receiver.getData());
+    }
+
+    @Test
+    public void testSingleFrame() {
+        BluePackage sender = BluePackage.createSender(DataType.C, "Hello!", "2A1A78", 182);
+        List<byte[]> frames = sender.getFrames();
+        assertEquals(1, frames.size());
+
+        BlueFrameReader reader = new BlueFrameReader();
+        assertEquals(BlueFrameReader.Kind.SINGLE, reader.read(frames.get(0)));
+        assertEquals(sender.getId(), reader.getId());
+        assertEquals(DataType.C, reader.getDataType());
+        assertEquals(sender.getDeviceId(), reader.getDeviceId());
+        assertEquals("Hello!", reader.getText());
+
+        // a device id longer than the frame is not valid
+        byte[] broken = frames.get(0).clone();
+        broken[3] = (byte) 200;
+        assertEquals(BlueFrameReader.Kind.INVALID, reader.read(broken));
+        assertNull(BlueFrame.decode(broken));
+
+        // acknowledgements travel inside without changing the message
+        byte[] withAcks = BlueFrame.addAcks(frames.get(0), List.of("3F", "4B"));
+        assertEquals(frames.get(0).length + 3, withAcks.length);
+        assertEquals(BlueFrameReader.Kind.SINGLE, reader.read(withAcks));
+        assertEquals(List.of("3F", "4B"), reader.getAcks());
+        assertEquals(sender.getDeviceId(), reader.getDeviceId());
+        assertEquals("Hello!", reader.getText());
+        assertFalse(BlueFrame.canCarryAcks(withAcks));
+        assertEquals("Hello!", BluePackage.createReceiver(withAcks).getData());
+
+        // too large for one frame, a header and parcels as before
+        BluePackage large = BluePackage.createSender(DataType.C, "Hello!", "2A1A78", 12);
+        assertTrue(BlueFrame.decode(large.getFrames().get(0)).isHeader());
+    }
+
+    @Test
+    public void testFrameEncoding() {
+        byte[] header = BlueFrame.encodeHeader("3F", 5, 0x1A2B3C4D, DataType.B, "2A1A78", 0);
+        BlueFrame frame = BlueFrame.decode(header);
+        assertNotNull(frame);
+        assertTrue(frame.isHeader());
+        assertEquals("3F", frame.getId());
+        assertEquals(5, frame.getIndex());
+        assertEquals(0x1A2B3C4D, frame.getChecksum());
+        assertEquals(DataType.B, frame.getCommand());
+        assertEquals("2A1A78", frame.getDeviceId());
+
+        byte[] data = parcel("3F", 300, "/bio:{\"color\":");
+        frame = BlueFrame.decode(data);
+        assertNotNull(frame);
+        assertTrue(frame.isParcel());
+        assertEquals(300, frame.getIndex());
+        assertEquals("/bio:{\"color\":", new String(frame.getPayload(), StandardCharsets.UTF_8));
+
+        // one-line commands are not frames
+        assertFalse(BlueFrame.isFrame(">B:REPEAT:3F".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testFrameReader() {
+        String text = "HelloWorldThisIsATestThatGoesAroundAndShouldBreakToMultipleMessagesOK?";
+        BluePackage sender = BluePackage.createSender(DataType.X, text, "2A1A78", 20, false);
+        List<byte[]> frames = sender.getFrames();
+
+        // the same reader goes over every frame
+        BlueFrameReader reader = new BlueFrameReader();
+        assertEquals(BlueFrameReader.Kind.HEADER, reader.read(frames.get(0)));
+        assertEquals(sender.getId(), reader.getId());
+        assertEquals(sender.getMessageParcelsTotal(), reader.getIndex());
+
+        BluePackage receiver = BluePackage.createReceiver(frames.get(0));
+        for (int i = frames.size() - 1; i > 0; i--) {
+            assertEquals(BlueFrameReader.Kind.PARCEL, reader.read(frames.get(i)));
+            assertEquals(i - 1, reader.getIndex());
+            receiver.receiveParcel(reader);
+        }
+        assertEquals(text, receiver.getData());
+
+        assertEquals(BlueFrameReader.Kind.COMMAND,
+                reader.read(">B:REPEAT:3F".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(">B:REPEAT:3F", reader.getCommand());
+        assertEquals(BlueFrameReader.Kind.INVALID, reader.read(new byte[]{(byte) 0x90, 0x01}));
+        assertEquals(BlueFrameReader.Kind.INVALID, reader.read("hello".getBytes(StandardCharsets.UTF_8)));
+    }
+
     @Test
     public void testReceiverReconstruction1() {
 
         BluePackage sender = BluePackage.createSender("HelloWorldThisIsATestThatGoesAroundAndShouldBreakToMultipleMessagesOK?");
         // get the first parcel, which should be a header
-        String parcel = sender.getNextParcel();
+        byte[] parcel = sender.getNextParcel();
         assertNotNull(parcel);
-        String[] header = parcel.split(":");
+        BlueFrame header = BlueFrame.decode(parcel);
+        assertNotNull(header);
         // unique and random id
-        String id = header[0];
+        assertEquals(sender.getId(), header.getId());
         // total number of parcels inside the package
-        String parcelNumber = header[1];
-        int parcelTotal = Integer.parseInt(parcelNumber);
-        assertEquals(7, parcelTotal);
+        assertEquals(5, header.getIndex());
         // checksum of the data inside
-        String checksum = header[2];
-        assertEquals(4, checksum.length());
+        assertEquals(BluePackage.calculateChecksum(
+                "HelloWorldThisIsATestThatGoesAroundAndShouldBreakToMultipleMessagesOK?"
+                        .getBytes(StandardCharsets.UTF_8)), header.getChecksum());
         // what kind of data is being shipped?
-        String dataType = header[3];
-        DataType dataTypeEnum = DataType.valueOf(dataType);
-        assertEquals(DataType.X, dataTypeEnum);
-
-        // second part
-        String parcel1 = sender.getNextParcel();
-        String parcel2 = sender.getNextParcel();
+        assertEquals(DataType.X, header.getCommand());
 
-        String headerToReceive = "ab:003:JSDA:B";
+        int checksum = BluePackage.calculateChecksum(
+                "DataPart1DataPart2DataPart3".getBytes(StandardCharsets.UTF_8));
+        byte[] headerToReceive = BlueFrame.encodeHeader("AB", 3, checksum, DataType.B, "2A1A78", 0);
         BluePackage receiver = BluePackage.createReceiver(headerToReceive);
 
-        receiver.receiveParcel("ab000:DataPart1");
-        receiver.receiveParcel("ab002:DataPart3");
-        receiver.receiveParcel("ab001:DataPart2");
+        receiver.receiveParcel(parcel("AB", 0, "DataPart1"));
+        receiver.receiveParcel(parcel("AB", 2, "DataPart3"));
+        receiver.receiveParcel(parcel("AB", 1, "DataPart2"));
 
         assertTrue(receiver.allParcelsReceivedAndValid());
         String dataReceived = receiver.getData();
@@ -75,7 +193,7 @@ public class BluePackageTest {
 
         // we assume the first parcel as the header
         BluePackage receiver = null;
-        String initialHeader = sender.getNextParcel();
+        byte[] initialHeader = sender.getNextParcel();
         try {
             receiver = BluePackage.createReceiver(initialHeader);
         } catch (Exception e) {
@@ -83,9 +201,9 @@ public class BluePackageTest {
         }
 
         for(int i = 0; i < receiver.getMessageParcelsTotal(); i++){
-            String text = sender.getNextParcel();
-            System.out.println(text);
-            receiver.receiveParcel(text);
+            byte[] frame = sender.getNextParcel();
+            System.out.println(BlueFrame.decode(frame));
+            receiver.receiveParcel(frame);
         }
 
         assertTrue(receiver.allParcelsReceivedAndValid());
@@ -94,22 +212,170 @@ public class BluePackageTest {
     }
 
 
+    @Test
+    public void testFramesEncodedOnce() {
+        BluePackage sender = BluePackage.createSender("HelloWorldThisIsATestThatGoesAroundAndShouldBreakToMultipleMessagesOK?");
+        List<byte[]> frames = sender.getFrames();
+        assertEquals(sender.getMessageParcelsTotal() + 1, frames.size());
+        // the same frames are given to every device
+        assertSame(frames, sender.getFrames());
+
+        BluePackage receiver = BluePackage.createReceiver(frames.get(0));
+        for (int i = 1; i < frames.size(); i++) {
+            receiver.receiveParcel(frames.get(i));
+        }
+        assertTrue(receiver.allParcelsReceivedAndValid());
+        assertEquals(sender.getData(), receiver.getData());
+    }
+
+    @Test
+    public void testCompression() {
+        String bio = "/bio:{\"id\":\"2A1A78\",\"nick\":\"Quiet Fox\",\"color\":\"Light Green\"}";
+        BluePackage plain = BluePackage.createSender(DataType.B, bio, "2A1A78", 20, false);
+        BluePackage sender = BluePackage.createSender(DataType.B, bio, "2A1A78", 20);
+        assertEquals(BlueCompression.DICTIONARY_V1, sender.getCompression());
+        assertTrue(sender.getMessageParcelsTotal() < plain.getMessageParcelsTotal());
+
+        List<byte[]> frames = sender.getFrames();
+        BlueFrame header = BlueFrame.decode(frames.get(0));
+        assertEquals(BlueCompression.DICTIONARY_V1, header.getFlags());
+
+        BluePackage receiver = BluePackage.createReceiver(frames.get(0));
+        for (int i = 1; i < frames.size(); i++) {
+            receiver.receiveParcel(frames.get(i));
+        }
+        assertTrue(receiver.allParcelsReceivedAndValid());
+        assertEquals(bio, receiver.getData());
+    }
+
+    @Test
+    public void testDecompressionLimit() {
+        // zeros shrink to a tiny fraction of their size
+        byte[] small = new byte[BluePackage.MAX_DATA_SIZE];
+        byte[] compressed = BlueCompression.compress(small);
+        assertNotNull(compressed);
+        assertArrayEquals(small, BlueCompression.decompress(compressed, BlueCompression.DICTIONARY_V1));
+
+        byte[] large = new byte[BluePackage.MAX_DATA_SIZE * 16];
+        compressed = BlueCompression.compress(large);
+        assertNotNull(compressed);
+        assertTrue(compressed.length < BluePackage.MAX_DATA_SIZE / 16);
+        assertNull(BlueCompression.decompress(compressed, BlueCompression.DICTIONARY_V1));
+    }
+
+    @Test
+    public void testParity() {
+        String text = "HelloWorldThisIsATestThatGoesAroundAndShouldBreakToMultipleMessagesOK?";
+        BluePackage sender = BluePackage.createSender(DataType.X, text, "2A1A78", 20, false, 0.3);
+        int parcels = sender.getMessageParcelsTotal();
+        assertEquals(4, sender.getParityTotal());
+        List<byte[]> frames = sender.getFrames();
+        assertEquals(1 + parcels + 4, frames.size());
+
+        // lose two parcels in a row, the parity rebuilds both
+        BluePackage receiver = BluePackage.createReceiver(frames.get(0));
+        for (int i = 1; i < frames.size(); i++) {
+            if (i == 2 || i == 3) {
+                continue;
+            }
+            receiver.receiveParcel(frames.get(i));
+        }
+        assertFalse(receiver.hasGaps());
+        assertTrue(receiver.allParcelsReceivedAndValid());
+        assertEquals(text, receiver.getData());
+    }
+
+    @Test
+    public void testNack() {
+        BluePackage receiver = BluePackage.createReceiver(
+                BlueFrame.encodeHeader("AB", 12, 0, DataType.X, "2A1A78", 0));
+        // the last parcel arriving first is kept until the size of the others is known
+        receiver.receiveParcel(parcel("AB", 11, "Data12"));
+        receiver.receiveParcel(parcel("AB", 0, "DataPart1"));
+        receiver.receiveParcel(parcel("AB", 3, "DataPart4"));
+        // parcels with a different size don't belong to this package
+        receiver.receiveParcel(parcel("AB", 5, "DataPart6+"));
+
+        BitSet gaps = receiver.getGaps();
+        assertEquals("{1, 2, 4, 5, 6, 7, 8, 9, 10}", gaps.toString());
+
+        // the request is cut to fit on a write of 20 bytes
+        BlueNack nack = BlueNack.create("AB", gaps, 20);
+        String text = nack.encode();
+        assertEquals("NACK:AB:1:FB03", text);
+        assertEquals(gaps, BlueNack.decode(text).getParcels());
+
+        // parcels already asked are not asked again
+        receiver.setRequested(nack.getParcels());
+        assertTrue(receiver.getGapsNotRequested().isEmpty());
+        assertNull(BlueNack.decode("NACK:AB:1:F"));
+        // indexes that no package can have are refused
+        assertNull(BlueNack.decode("NACK:3F:2000000000:FF"));
+        assertNull(BlueNack.decode("NACK:3F:2147483647:FF"));
+        assertNull(BlueNack.decode("NACK:3F:65535:FF"));
+        assertNotNull(BlueNack.decode("NACK:3F:65528:FF"));
+    }
+
+    @Test
+    public void testChecksumOrder() {
+        // same characters in another order, the old sum of characters accepted this
+        int checksum = BluePackage.calculateChecksum(
+                "DataPart1DataPart2".getBytes(StandardCharsets.UTF_8));
+        BluePackage receiver = BluePackage.createReceiver(
+                BlueFrame.encodeHeader("AB", 2, checksum, DataType.X, "2A1A78", 0));
+        receiver.receiveParcel(parcel("AB", 0, "DataPart2"));
+        receiver.receiveParcel(parcel("AB", 1, "DataPart1"));
+        assertFalse(receiver.allParcelsReceivedAndValid());
+        assertNull(receiver.getData());
+
+        // the damaged parcels are discarded and the package can be sent again
+        assertEquals(2, receiver.getMissingParcels().cardinality());
+        receiver.receiveParcel(parcel("AB", 1, "DataPart2"));
+        receiver.receiveParcel(parcel("AB", 0, "DataPart1"));
+        assertTrue(receiver.allParcelsReceivedAndValid());
+        assertEquals("DataPart1DataPart2", receiver.getData());
+    }
+
     @Test
     public void testGaps() {
-        String headerToReceive = "ab:003:JSDA:B";
+        int checksum = BluePackage.calculateChecksum(
+                "DataPart1DataPart2DataPart3".getBytes(StandardCharsets.UTF_8));
+        byte[] headerToReceive = BlueFrame.encodeHeader("AB", 3, checksum, DataType.B, "2A1A78", 0);
         BluePackage receiver = BluePackage.createReceiver(headerToReceive);
 
-        receiver.receiveParcel("ab000:DataPart1");
+        receiver.receiveParcel(parcel("AB", 0, "DataPart1"));
         assertFalse(receiver.hasGaps());
 
-        receiver.receiveParcel("ab002:DataPart3");
+        receiver.receiveParcel(parcel("AB", 2, "DataPart3"));
         assertTrue(receiver.hasGaps());
 
         String gapIndex = receiver.getFirstGapParcel();
         assertEquals(receiver.getId() + "001", gapIndex);
 
-        receiver.receiveParcel("ab001:DataPart2");
+        receiver.receiveParcel(parcel("AB", 1, "DataPart2"));
         assertFalse(receiver.hasGaps());
+        assertTrue(receiver.allParcelsReceivedAndValid());
+    }
+
+    @Test
+    public void testSizeLimit() {
+        // a header from another device can't make us reserve megabytes
+        BluePackage tooMany = BluePackage.createReceiver(
+                BlueFrame.encodeHeader("AB", BlueFrame.MAX_PARCELS, 0, DataType.X, "2A1A78", 0));
+        assertFalse(tooMany.isValidHeader());
+        tooMany.receiveParcel(parcel("AB", 0, "DataPart1"));
+        assertNull(tooMany.getData());
+
+        // the most parcels accepted, but parcels too large for that many
+        int total = BluePackage.MAX_PARCELS_RECEIVED;
+        BluePackage receiver = BluePackage.createReceiver(
+                BlueFrame.encodeHeader("AB", total, 0, DataType.X, "2A1A78", 0));
+        assertTrue(receiver.isValidHeader());
+        receiver.receiveParcel(BlueFrame.encodeParcel("AB", 0, new byte[500], 0));
+        assertEquals(total, receiver.getMissingParcels().cardinality());
+        // parcels of the smallest frames fit
+        receiver.receiveParcel(parcel("AB", 0, "DataPartNumber01"));
+        assertEquals(total - 1, receiver.getMissingParcels().cardinality());
     }
 
 }
@@ -0,0 +1,132 @@
+package offgrid.grid.geogram;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+
+import offgrid.geogram.bluetooth.BlueReassemblyTable;
+import offgrid.geogram.bluetooth.BlueTimerWheel;
+import offgrid.geogram.bluetooth.other.comms.BlueFrame;
+import offgrid.geogram.bluetooth.other.comms.BluePackage;
+import offgrid.geogram.bluetooth.other.comms.DataType;
+import offgrid.geogram.core.Central;
+import offgrid.geogram.settings.SettingsLoader;
+
+public class BlueReassemblyTableTest {
+
+    private static final String
+            MAC_A = "AA:BB:CC:DD:EE:FF",
+            MAC_B = "11:22:33:44:55:66";
+
+    @Before
+    public void setUp() {
+        Central.debugForLocalTests = true;
+        Central.getInstance().setSettings(SettingsLoader.createDefaultSettings(null));
+    }
+
+    private static BluePackage receiver(String id) {
+        return BluePackage.createReceiver(
+                BlueFrame.encodeHeader(id, 2, 0, DataType.B, "2A1A78", 0));
+    }
+
+    @Test
+    public void testSameIdFromTwoDevices() {
+        BlueTimerWheel wheel = new BlueTimerWheel(100, 64);
+        BlueReassemblyTable table = new BlueReassemblyTable(wheel, 3000, 1024 * 1024);
+        long now = System.currentTimeMillis();
+        BluePackage fromA = receiver("3F");
+        BluePackage fromB = receiver("3F");
+
+        table.put(MAC_A, fromA, now);
+        table.put(MAC_B, fromB, now);
+        assertEquals(2, table.size());
+        assertSame(fromA, table.get(MAC_A, "3F"));
+        assertSame(fromB, table.get(MAC_B, "3F"));
+        assertNull(table.get(MAC_A, "40"));
+        assertTrue(table.containsPackageId("3F"));
+        assertEquals(2, table.getActiveTotal());
+
+        table.complete(MAC_A, "3F", now);
+        assertEquals(1, table.getActiveTotal());
+        table.clear();
+        assertFalse(table.hasActiveTransfers());
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testIdReused() {
+        BlueTimerWheel wheel = new BlueTimerWheel(100, 64);
+        BlueReassemblyTable table = new BlueReassemblyTable(wheel, 3000, 1024 * 1024);
+        long now = System.currentTimeMillis();
+        byte[] data = "DataPart1".getBytes(StandardCharsets.UTF_8);
+        BluePackage first = BluePackage.createReceiver(BlueFrame.encodeHeader(
+                "3F", 1, BluePackage.calculateChecksum(data), DataType.B, "2A1A78", 0));
+        table.put(MAC_A, first, now);
+        first.receiveParcel(BlueFrame.encodeParcel("3F", 0, data, 0));
+        assertTrue(first.allParcelsReceivedAndValid());
+        table.complete(MAC_A, "3F", now);
+
+        // the id came around again with another package, it takes the place
+        BluePackage second = receiver("3F");
+        assertNotEquals(first.getChecksum(), second.getChecksum());
+        table.put(MAC_A, second, now + 1000);
+        assertSame(second, table.get(MAC_A, "3F"));
+        assertEquals(1, table.size());
+        assertEquals(1, table.getActiveTotal());
+        wheel.expire(now + 1000 + BlueReassemblyTable.timeToKeepComplete + 100);
+        assertSame(second, table.get(MAC_A, "3F"));
+    }
+
+    @Test
+    public void testExpiry() {
+        // the wheel is not started, time only moves with expire()
+        BlueTimerWheel wheel = new BlueTimerWheel(100, 64);
+        BlueReassemblyTable table = new BlueReassemblyTable(wheel, 3000, 1024 * 1024);
+        long now = System.currentTimeMillis();
+        table.put(MAC_A, receiver("3F"), now);
+        table.put(MAC_B, receiver("3F"), now);
+
+        // a parcel keeps the first transfer active for longer
+        table.touch(MAC_A, "3F", now + 2000);
+        wheel.expire(now + 3500);
+        assertEquals(1, table.getActiveTotal());
+        wheel.expire(now + 5500);
+        assertFalse(table.hasActiveTransfers());
+
+        // packages that stopped moving are still kept for a while
+        assertEquals(2, table.size());
+        table.complete(MAC_A, "3F", now + 6000);
+        wheel.expire(now + 6000 + BlueReassemblyTable.timeToKeepComplete + 100);
+        assertNull(table.get(MAC_A, "3F"));
+        assertNotNull(table.get(MAC_B, "3F"));
+        wheel.expire(now + BlueReassemblyTable.timeToKeepIncomplete + 100);
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testMemoryLimit() {
+        BlueTimerWheel wheel = new BlueTimerWheel(100, 64);
+        // room for two packages with one parcel of 9 bytes, each takes 18
+        BlueReassemblyTable table = new BlueReassemblyTable(wheel, 3000, 40);
+        long now = System.currentTimeMillis();
+        byte[] parcel = "DataPart1".getBytes(StandardCharsets.UTF_8);
+        String[] macs = {MAC_A, MAC_B, "01:02:03:04:05:06"};
+        for (int i = 0; i < macs.length; i++) {
+            BluePackage item = receiver("3F");
+            table.put(macs[i], item, now + i);
+            item.receiveParcel(BlueFrame.encodeParcel("3F", 0, parcel, 0));
+            table.touch(macs[i], "3F", now + i);
+            if (i == 1) {
+                // the first device sends again, the second is now the oldest
+                table.touch(MAC_A, "3F", now + i);
+            }
+        }
+        assertEquals(2, table.size());
+        assertEquals(36, table.getBytes());
+        assertNotNull(table.get(MAC_A, "3F"));
+        assertNull(table.get(MAC_B, "3F"));
+        assertEquals(2, table.getActiveTotal());
+    }
+}
@@ -0,0 +1,53 @@
+package offgrid.grid.geogram;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import offgrid.geogram.bluetooth.BlueRttEstimator;
+
+public class BlueRttEstimatorTest {
+
+    private static final String
+            MAC_A = "AA:BB:CC:DD:EE:FF",
+            MAC_B = "11:22:33:44:55:66";
+
+    @Test
+    public void testSteadyLink() {
+        BlueRttEstimator estimator = new BlueRttEstimator();
+        assertEquals(BlueRttEstimator.timeoutInitial, estimator.getTimeout(MAC_A));
+        assertEquals(-1, estimator.getSmoothedRtt(MAC_A));
+
+        // the first sample: 400 + 4 * 200
+        estimator.addSample(MAC_A, 400);
+        assertEquals(400, estimator.getSmoothedRtt(MAC_A));
+        assertEquals(1200, estimator.getTimeout(MAC_A));
+
+        // the same time again and again, the variation goes away
+        for (int i = 0; i < 50; i++) {
+            estimator.addSample(MAC_A, 400);
+        }
+        assertEquals(400, estimator.getSmoothedRtt(MAC_A));
+        assertEquals(400 + 100, estimator.getTimeout(MAC_A));
+
+        // other devices are not affected
+        assertEquals(BlueRttEstimator.timeoutInitial, estimator.getTimeout(MAC_B));
+    }
+
+    @Test
+    public void testLimits() {
+        BlueRttEstimator estimator = new BlueRttEstimator();
+        for (int i = 0; i < 50; i++) {
+            estimator.addSample(MAC_A, 20);
+            estimator.addSample(MAC_B, 60 * 1000);
+        }
+        assertEquals(BlueRttEstimator.timeoutMinimum, estimator.getTimeout(MAC_A));
+        assertEquals(BlueRttEstimator.timeoutMaximum, estimator.getTimeout(MAC_B));
+
+        // a slower link takes more time to be noticed
+        estimator.clear();
+        estimator.addSample(MAC_A, 100);
+        long before = estimator.getTimeout(MAC_A);
+        estimator.addSample(MAC_A, 900);
+        assertTrue(estimator.getTimeout(MAC_A) > before);
+    }
+}
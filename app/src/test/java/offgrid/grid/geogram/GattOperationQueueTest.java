@@ -0,0 +1,82 @@
+package offgrid.grid.geogram;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import offgrid.geogram.bluetooth.GattOperation;
+import offgrid.geogram.bluetooth.GattOperationQueue;
+
+public class GattOperationQueueTest {
+
+    @Test
+    public void testOperationsRunInSequence() {
+        GattOperationQueue queue = new GattOperationQueue("test");
+        ArrayList<String> started = new ArrayList<>();
+
+        CompletableFuture<byte[]> connect = queue.enqueue(new GattOperation(GattOperation.Type.CONNECT,
+                () -> started.add("connect")));
+        CompletableFuture<byte[]> write = queue.enqueue(new GattOperation(GattOperation.Type.WRITE,
+                () -> started.add("write")));
+
+        // the write waits for the callback of the connection
+        assertEquals(1, started.size());
+        assertEquals(2, queue.size());
+
+        queue.complete(GattOperation.Type.CONNECT, null);
+        assertTrue(connect.isDone());
+        assertEquals(2, started.size());
+        assertEquals("write", started.get(1));
+
+        // callbacks of another type are ignored
+        queue.complete(GattOperation.Type.READ, null);
+        assertFalse(write.isDone());
+
+        queue.complete(GattOperation.Type.WRITE, new byte[]{1});
+        assertTrue(write.isDone());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testFailedStartMovesOn() {
+        GattOperationQueue queue = new GattOperationQueue("test");
+        CompletableFuture<byte[]> failed = queue.enqueue(new GattOperation(GattOperation.Type.WRITE, () -> false));
+        CompletableFuture<byte[]> next = queue.enqueue(new GattOperation(GattOperation.Type.WRITE, () -> true));
+
+        assertTrue(failed.isCompletedExceptionally());
+        assertFalse(next.isDone());
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        GattOperationQueue queue = new GattOperationQueue("test");
+        CompletableFuture<byte[]> read = queue.enqueue(new GattOperation(GattOperation.Type.READ, () -> true, 50));
+        try {
+            read.get(2, TimeUnit.SECONDS);
+            fail("Operation should have timed out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testClose() {
+        GattOperationQueue queue = new GattOperationQueue("test");
+        CompletableFuture<byte[]> running = queue.enqueue(new GattOperation(GattOperation.Type.CONNECT, () -> true));
+        CompletableFuture<byte[]> waiting = queue.enqueue(new GattOperation(GattOperation.Type.WRITE, () -> true));
+
+        queue.close("closed");
+        assertTrue(running.isCompletedExceptionally());
+        assertTrue(waiting.isCompletedExceptionally());
+
+        CompletableFuture<byte[]> late = queue.enqueue(new GattOperation(GattOperation.Type.WRITE, () -> true));
+        assertTrue(late.isCompletedExceptionally());
+    }
+}
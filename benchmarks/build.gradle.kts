@@ -0,0 +1,42 @@
+// JMH benchmarks for the parts of the app that are plain Java.
+// Run them with: ./gradlew :benchmarks:jmh
+plugins {
+    java
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_17
+    targetCompatibility = JavaVersion.VERSION_17
+}
+
+// the classes measured are compiled from the sources of the app,
+// only the ones that don't need the Android framework
+sourceSets {
+    main {
+        java {
+            srcDir("../app/src/main/java")
+            include(
+                "offgrid/geogram/bluetooth/BlueDestinationQueue.java",
+                "offgrid/geogram/bluetooth/other/comms/BlueFrame.java",
+                "offgrid/geogram/bluetooth/other/comms/BlueFrameReader.java",
+                "offgrid/geogram/bluetooth/other/comms/BlueQueueParcel.java",
+                "offgrid/geogram/bluetooth/other/comms/DataType.java",
+                "offgrid/geogram/wifi/comm/DeliveryPriority.java",
+            )
+        }
+    }
+}
+
+dependencies {
+    implementation(libs.annotation)
+}
+
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    // adds gc.alloc.rate.norm, the bytes allocated on each operation
+    profilers.add("gc")
+}
@@ -0,0 +1,86 @@
+package offgrid.geogram.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import offgrid.geogram.bluetooth.other.comms.BlueQueueParcel;
+
+/**
+ * Cost of placing a parcel on the queue of a device as more parcels
+ * are waiting there. Each operation does what Bluecomm.writeData does,
+ * the check for a duplicate and the add, and then takes the oldest
+ * parcel out so that the queue keeps the same depth.
+ * <p>
+ * With the index of the data waiting the time should not change
+ * with the depth, the scan done before grew with every parcel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BlueDestinationQueueBenchmark {
+
+    private static final String MAC_ADDRESS = "AA:BB:CC:DD:EE:FF";
+    // a parcel on the default link, see BlueFrame
+    private static final int FRAME_SIZE = 20;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int depth;
+
+    private BlueDestinationQueue queue;
+    // twice the depth, the next one to add is never on the queue
+    private byte[][] frames;
+    private int next;
+    private int waiting;
+    private long now;
+
+    @Setup
+    public void setUp() {
+        frames = new byte[depth * 2][];
+        for (int i = 0; i < frames.length; i++) {
+            byte[] frame = new byte[FRAME_SIZE];
+            frame[0] = (byte) 0x90;
+            frame[1] = (byte) (i >> 24);
+            frame[2] = (byte) (i >> 16);
+            frame[3] = (byte) (i >> 8);
+            frame[4] = (byte) i;
+            frames[i] = frame;
+        }
+        queue = new BlueDestinationQueue(MAC_ADDRESS);
+        for (int i = 0; i < depth; i++) {
+            queue.add(new BlueQueueParcel(MAC_ADDRESS, frames[i]));
+        }
+        next = depth;
+        waiting = 0;
+        now = System.currentTimeMillis();
+    }
+
+    @Benchmark
+    public BlueQueueParcel enqueue() {
+        byte[] frame = frames[next];
+        next = (next + 1) % frames.length;
+        if (queue.contains(frame) == false) {
+            queue.add(new BlueQueueParcel(MAC_ADDRESS, frame));
+        }
+        BlueQueueParcel oldest = queue.peek(now);
+        queue.remove(oldest);
+        return oldest;
+    }
+
+    /**
+     * Only the check for a duplicate, on data that is waiting.
+     */
+    @Benchmark
+    public boolean containsDuplicate() {
+        byte[] frame = frames[waiting];
+        waiting = (waiting + 1) % depth;
+        return queue.contains(frame);
+    }
+}
@@ -0,0 +1,110 @@
+package offgrid.geogram.bluetooth.other.comms;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames per second classified by BlueReceiver, one frame on each
+ * operation. The frames follow a typical transfer: a header, its
+ * parcels, a single frame and a command.
+ * <p>
+ * The gc profiler of the benchmarks module reports the bytes
+ * allocated per frame as gc.alloc.rate.norm. Reading the fields used
+ * to route a frame should allocate nothing. The text of single frames
+ * and commands is only decoded when they are processed.
+ * <p>
+ * readText repeats the parsing done on the text format used before
+ * BlueFrame, as a reference.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BlueFrameReaderBenchmark {
+
+    private final BlueFrameReader reader = new BlueFrameReader();
+    private byte[][] frames;
+    private byte[][] texts;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        // fills a parcel on the default link of 20 bytes
+        String text = "is this able to ";
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        frames = new byte[][]{
+                BlueFrame.encodeHeader("3F", 6, 0x12345678, DataType.B, "2A1A78", 0),
+                BlueFrame.encodeParcel("3F", 0, payload, 0),
+                BlueFrame.encodeParcel("3F", 1, payload, 0),
+                BlueFrame.encodeParcel("3F", 2, payload, 0),
+                BlueFrame.encodeParcel("3F", 3, payload, 0),
+                BlueFrame.encodeParcel("3F", 4, payload, 0),
+                BlueFrame.encodeParcel("3F", 5, payload, 0),
+                BlueFrame.encodeSingle("40", DataType.C, "2A1A78", "hello".getBytes(StandardCharsets.UTF_8)),
+                ">B:NACK:3F:1:05".getBytes(StandardCharsets.UTF_8)
+        };
+        // the same transfer on the text format, e.g. VY000:is this able t
+        String[] lines = {
+                "3F:006:HCNA:B:2A1A78",
+                "3F000:" + text,
+                "3F001:" + text,
+                "3F002:" + text,
+                "3F003:" + text,
+                "3F004:" + text,
+                "3F005:" + text,
+                "40:001:HCNA:C:2A1A78",
+                ">B:NACK:3F:1:05"
+        };
+        texts = new byte[lines.length][];
+        for (int i = 0; i < lines.length; i++) {
+            texts[i] = lines[i].getBytes(StandardCharsets.UTF_8);
+        }
+        next = 0;
+    }
+
+    /**
+     * Classifies a frame and reads what is needed to route it.
+     */
+    @Benchmark
+    public void readFrame(Blackhole blackhole) {
+        byte[] data = frames[next];
+        next = next == frames.length - 1 ? 0 : next + 1;
+        BlueFrameReader.Kind kind = reader.read(data);
+        blackhole.consume(kind);
+        if (kind == BlueFrameReader.Kind.COMMAND) {
+            return;
+        }
+        blackhole.consume(reader.getId());
+        blackhole.consume(reader.getIndex());
+        blackhole.consume(reader.getPayloadOffset());
+        blackhole.consume(reader.getPayloadLength());
+    }
+
+    /**
+     * The checks made on every write with the text format.
+     */
+    @Benchmark
+    public void readText(Blackhole blackhole) {
+        byte[] data = texts[next];
+        next = next == texts.length - 1 ? 0 : next + 1;
+        String text = new String(data, StandardCharsets.UTF_8);
+        if (text.contains(":") == false) {
+            return;
+        }
+        if (text.startsWith(">")) {
+            blackhole.consume(text);
+            return;
+        }
+        String[] fields = text.split(":");
+        blackhole.consume(fields[0].substring(0, 2));
+        blackhole.consume(fields[0].length() > 2 ? fields[0].substring(2) : fields[1]);
+    }
+}
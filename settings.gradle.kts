@@ -23,4 +23,5 @@ dependencyResolutionManagement {
 
 rootProject.name = "Geogram"
 include(":app")
+include(":benchmarks")
  
\ No newline at end of file